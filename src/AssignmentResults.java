@@ -1,13 +1,13 @@
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.ProcessBuilder.Redirect;
 import java.net.URI;
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -16,11 +16,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TreeMap;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipException;
@@ -35,21 +35,28 @@ import org.xml.sax.SAXException;
  *
  */
 public class AssignmentResults implements Comparable<AssignmentResults>{
-	public final double SUBMISSION_SIMILARITY_THRESHOLD = 0.75;
-	public final static int MAX_ERROR_OUTPUT_SIZE = 4096;
-	public final static int MAX_STD_OUTPUT_SIZE = 4096;
+	public final static int RUN_MODE_PROCESS = 0;
+	public final static int RUN_MODE_WORKER = 1;
+	public final static int RUN_MODE_REDIRECT = 2;
+	public final static double SUBMISSION_SIMILARITY_THRESHOLD = 0.75;
+	public final static double SOURCE_SIMILARITY_THRESHOLD = 0.5;
 	private String name;
 	private String fullName;
 	private File dir;
 	private ArrayList<String> userJavaFiles;
 	private HashMap<String, String> requestedUserJavaFilesContents;
 	private HashMap<String, String> otherFilesContents;
+	private HashMap<String, NormalizedDocument> otherFilesNormalized;
 	private ArrayList<String> javaFiles;
 	private ArrayList<String> otherFiles;
 	private ArrayList<String> missingFiles;
 	private TreeMap<String, Double> closestOtherSubmittedFiles;
+	private HashMap<String, long[]> javaFilesFingerprints;
+	private TreeMap<String, Double> closestOtherJavaFiles;
+	private TreeMap<String, Double> archivedSimilarFiles;
 	private String compilationOutput;
 	private HashMap<String,String> programOutputs;
+	private HashMap<String,RunStats> programStats;
 	private Date firstSubmissionDate;
 	private double daysLate;
 	
@@ -100,10 +107,15 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 		dir = _dir;
 		missingFiles = new ArrayList<String>();
 		programOutputs = new HashMap<String,String>();
+		programStats = new HashMap<String,RunStats>();
 		userJavaFiles = new ArrayList<String>();
 		requestedUserJavaFilesContents = new HashMap<String, String>();
 		otherFilesContents = new HashMap<String, String>();
+		otherFilesNormalized = new HashMap<String, NormalizedDocument>();
 		closestOtherSubmittedFiles = new TreeMap<String, Double>();
+		javaFilesFingerprints = new HashMap<String, long[]>();
+		closestOtherJavaFiles = new TreeMap<String, Double>();
+		archivedSimilarFiles = new TreeMap<String, Double>();
 		daysLate = 0;
 	}
 	
@@ -112,6 +124,15 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 		return name;
 	}
 	
+	/**
+	 * Get the directory containing the student's submission files.
+	 * @return student's directory
+	 */
+	public File getDirectory()
+	{
+		return dir;
+	}
+	
 	public String toString()
 	{
 		String separator = "--------------------------------------------------------------------------------\n";
@@ -137,6 +158,30 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 			r.append(separator);
 		}
 		
+		// Report Java files sharing much of their code with other submissions.
+		if (closestOtherJavaFiles.size() > 0)
+		{
+			r.append("Similar Java files in other submissions:\n");
+			for (String key : closestOtherJavaFiles.keySet())
+			{
+				r.append(String.format("%s: %.2f%%\n", key, closestOtherJavaFiles.get(key) * 100.0));
+			}
+			r.append("\n");
+			r.append(separator);
+		}
+		
+		// Report files resembling submissions from earlier terms.
+		if (archivedSimilarFiles.size() > 0)
+		{
+			r.append("Similar files in earlier terms:\n");
+			for (String key : archivedSimilarFiles.keySet())
+			{
+				r.append(String.format("%s: %.2f%%\n", key, archivedSimilarFiles.get(key) * 100.0));
+			}
+			r.append("\n");
+			r.append(separator);
+		}
+		
 		r.append("Other files found:\n");
 		if (otherFiles != null)
 		{
@@ -187,10 +232,6 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 			String programOutput = programOutputs.get(pn);
 			if (programOutput != null)
 			{
-				if (programOutput.length() > MAX_STD_OUTPUT_SIZE)
-				{
-					programOutput = programOutput.substring(0, MAX_STD_OUTPUT_SIZE);
-				}
 				r.append(String.format("Output from program %s:\n", pn));
 				r.append(programOutput);
 			}
@@ -198,6 +239,11 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 			{
 				r.append(String.format("No output from program %s\n", pn));
 			}
+			RunStats stats = programStats.get(pn);
+			if (stats != null)
+			{
+				r.append(String.format("Resources used by program %s: %s\n", pn, stats));
+			}
 		}
 		return r.toString();
 	}
@@ -286,80 +332,119 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 				contents = "TikaException: " + sb.toString();
 			}
 			otherFilesContents.put(of, contents);
+			if (isComparableDocument(of))
+			{
+				otherFilesNormalized.put(of, new NormalizedDocument(contents));
+			}
 		}
 	}
 	
 	/**
-	 * Compare this submission's text file contents with the other submission.
-	 * @return TreeMap of closest match (may contain more than one if same score)
+	 * Determine whether a submitted file should be checked for similarity
+	 * with other submissions.  BlackBoard's submission.txt and the
+	 * database.properties file handed out with assignments are skipped.
+	 * @param key - relative name of the submitted file
+	 * @return true if the file should be compared
 	 */
-	public TreeMap<String, Double> findClosestMatches(AssignmentResults other, double threshold)
+	public static boolean isComparableDocument(String key)
 	{
-		TreeMap<String, Double> similarFiles = new TreeMap<>();
-		for (String thisKey : this.otherFilesContents.keySet())
+		return !key.endsWith("submission.txt") &&
+				!key.endsWith("database.properties");
+	}
+	
+	/**
+	 * Get the name used for one of this submission's files in a MinHashIndex.
+	 * @param key - relative name of the submitted file
+	 * @return document key
+	 */
+	public String getDocumentKey(String key)
+	{
+		return name + ":" + key;
+	}
+	
+	/**
+	 * Get the normalized contents of this submission's text files that
+	 * should be checked for similarity with other submissions.
+	 * @return normalized comparable files, ordered by file name
+	 */
+	public TreeMap<String, NormalizedDocument> getComparableDocuments()
+	{
+		return new TreeMap<String, NormalizedDocument>(otherFilesNormalized);
+	}
+	
+	/**
+	 * Replace the closest other submitted files found for this submission.
+	 * @param closest - closest matches and their similarity scores
+	 */
+	public void setClosestOtherSubmittedFiles(TreeMap<String, Double> closest)
+	{
+		closestOtherSubmittedFiles = closest;
+	}
+	
+	/**
+	 * Add this submission's comparable text file contents to a MinHashIndex.
+	 * @param index - index to receive the documents
+	 */
+	public void addDocumentsTo(MinHashIndex index)
+	{
+		for (Map.Entry<String, NormalizedDocument> doc : getComparableDocuments().entrySet())
 		{
-			if (!thisKey.endsWith("submission.txt") &&
-					!thisKey.endsWith("database.properties"))
-			{
-				double bestMatch = 0;
-				ArrayList<String> matches = new ArrayList<String>();
-				for (String otherKey : other.otherFilesContents.keySet())
-				{
-					if (!otherKey.endsWith("submission.txt") &&
-							!thisKey.endsWith("database.properties"))
-					{
-						double thisMatch = StringSimilarity.similarity
-								(otherFilesContents.get(thisKey), other.otherFilesContents.get(otherKey));
-						if (thisMatch > bestMatch)
-						{
-							matches.clear();
-							matches.add(thisKey + ":" + other.name + ":" + otherKey);
-							bestMatch = thisMatch;
-						}
-						else if (thisMatch == bestMatch)
-						{
-							matches.add(thisKey + ":" + other.name + ":" + otherKey);
-						}	
-					}
-				}
-				if (bestMatch >= threshold)
-				{
-					for (String s : matches)
-					{
-						similarFiles.put(s, bestMatch);
-					}
-				}
-			}
+			index.add(getDocumentKey(doc.getKey()), doc.getValue());
 		}
-		return similarFiles;
 	}
 	
 	/**
-	 * Find the closest submitted files to this assignment's submission.
+	 * Compute the winnowing fingerprints of the Java files collected in the
+	 * user directory, for comparison with other submissions' Java files.
 	 */
-	public void findClosestMatchesInAllSubmissions(ArrayList<AssignmentResults> assignments)
+	public void fingerprintJavaFiles()
 	{
-		double closestMatch = SUBMISSION_SIMILARITY_THRESHOLD;
-		for (AssignmentResults other : assignments)
+		for (String jFile : userJavaFiles)
 		{
-			// Don't check an assignment's own submitted files.
-			if (this != other)
+			File f = new File(dir.getAbsolutePath() + File.separator + jFile);
+			try
 			{
-				TreeMap<String, Double> closestMatches = findClosestMatches(other, closestMatch);
-				if (closestMatches.size() > 0 &&
-						closestMatches.firstEntry().getValue() > closestMatch)
-				{
-					// Discard lower-scoring files.
-					closestOtherSubmittedFiles.clear();
-					closestMatch = closestMatches.firstEntry().getValue();
-				}
-				for (String key : closestMatches.keySet())
-				{
-					closestOtherSubmittedFiles.put(key, closestMatches.get(key));
-				}
+				javaFilesFingerprints.put(jFile, Winnowing.fingerprintJava(getFileAsString(f)));
+			}
+			catch (FileNotFoundException e)
+			{
+				System.err.println("Could not fingerprint " + f.getAbsolutePath() + ": " + e.getMessage());
 			}
 		}
 	}
+	
+	/**
+	 * Get the winnowing fingerprints of this submission's Java files.
+	 * @return fingerprints of each Java file, ordered by file name
+	 */
+	public TreeMap<String, long[]> getJavaFilesFingerprints()
+	{
+		return new TreeMap<String, long[]>(javaFilesFingerprints);
+	}
+	
+	/**
+	 * Replace the Java files in other submissions found to be similar to
+	 * this submission's Java files.
+	 * @param closest - thisFile:otherName:otherFile and fraction of fingerprints shared
+	 */
+	public void setClosestOtherJavaFiles(TreeMap<String, Double> closest)
+	{
+		closestOtherJavaFiles = closest;
+	}
+
+	/**
+	 * Record files from earlier terms that are similar to one of this
+	 * submission's files.
+	 * @param file - name of this submission's file
+	 * @param matches - labels of the archived files and their scores
+	 */
+	public void addArchivedSimilarFiles(String file, TreeMap<String, Double> matches)
+	{
+		for (String label : matches.keySet())
+		{
+			archivedSimilarFiles.put(file + ":" + label, matches.get(label));
+		}
+	}
 
 	/**
 	 * In the user directory, collect the Java files in the submissions (ordered by
@@ -404,6 +489,30 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 		}
 	}
 
+	/**
+	 * Get the files in the user directory that programs may read as
+	 * data: the submitted files other than Java files, and the files
+	 * copied by copyFilesToUser().
+	 * @param programs - programs run for the user
+	 * @return paths relative to the user directory
+	 */
+	private ArrayList<String> getDataFiles(ProgramInfo programs[])
+	{
+		ArrayList<String> dataFiles = new ArrayList<String>();
+		if (otherFiles != null)
+		{
+			dataFiles.addAll(otherFiles);
+		}
+		for (ProgramInfo program : programs)
+		{
+			for (CopyFile fileToCopy : program.getFilesToCopy())
+			{
+				dataFiles.add(fileToCopy.getDestBase());
+			}
+		}
+		return dataFiles;
+	}
+
 	/**
 	 * Find earliest date of submission in the files.
 	 * If submission date is after the due date, compute the
@@ -802,8 +911,23 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 	 */
 	public boolean compileJavaFiles(ProgramInfo[] programs, File dir) throws IOException, InterruptedException
 	{
-		StringBuffer output = new StringBuffer();
-		
+		return compileJavaFiles(programs, dir, null, null);
+	}
+
+	/**
+	 * Compile the Java source files under the given directory, either
+	 * with a javac process or with the in-process compiler, reusing
+	 * the class files and messages of an identical earlier compilation
+	 * from the compile cache, if one is given.
+	 * Return a string describing the results.
+	 * 
+	 * @param dir - working directory
+	 * @param compiler - in-process compiler to use, or null to run javac
+	 * @param cache - compile cache to use, or null
+	 * @return status
+	 */
+	public boolean compileJavaFiles(ProgramInfo[] programs, File dir, InProcessCompiler compiler, CompileCache cache) throws IOException, InterruptedException
+	{
 		if (userJavaFiles.size() == 0)
 			return true;
 		String classpath = null;
@@ -817,6 +941,47 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 				break;
 			}
 		}
+		if (cache == null)
+		{
+			return compileJavaFiles(dir, classpath, compiler);
+		}
+		String key = CompileCache.key(dir, userJavaFiles, classpath, compiler != null);
+		CompileCache.Entry entry = cache.restore(key, dir);
+		if (entry != null)
+		{
+			compilationOutput = entry.output;
+			return entry.success;
+		}
+		HashMap<String, Long> before = CompileCache.listClassFiles(dir);
+		boolean success = compileJavaFiles(dir, classpath, compiler);
+		cache.store(key, dir, before, success, compilationOutput);
+		return success;
+	}
+
+	/**
+	 * Compile the user's Java files with the given classpath, and set
+	 * the compilation output.
+	 */
+	private boolean compileJavaFiles(File dir, String classpath, InProcessCompiler compiler) throws IOException, InterruptedException
+	{
+		StringBuffer output = new StringBuffer();
+		
+		if (compiler != null)
+		{
+			InProcessCompiler.Result result = compiler.compile(dir, userJavaFiles, classpath);
+			if (result.output.length() != 0)
+			{
+				compilationOutput = result.output;
+				return false;
+			}
+			else if (!result.success)
+			{
+				compilationOutput = "Compiler failed without messages";
+				return false;
+			}
+			compilationOutput = "OK";
+			return true;
+		}
 		Runtime r = Runtime.getRuntime();
 		ArrayList<String> cmd = new ArrayList<>();
 		int numArgs = 0;
@@ -862,8 +1027,57 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 	 * @throws InterruptedException
 	 */
 	public void runJavaPrograms(ProgramInfo[] programs, File dir) throws IOException, InterruptedException
+	{
+		runJavaPrograms(programs, dir, RUN_MODE_PROCESS, null);
+	}
+
+	/**
+	 * Run each of the programs that should have been submitted, in one
+	 * of the run modes:
+	 *   RUN_MODE_PROCESS: a new JVM for each run, with threads copying
+	 *     its standard input and output;
+	 *   RUN_MODE_WORKER: a worker JVM that is reused for all of the
+	 *     student's runs;
+	 *   RUN_MODE_REDIRECT: a new JVM for each run, with its standard
+	 *     input and output redirected to files by the operating system.
+	 * Programs with a security policy file do not run in a worker JVM, and
+	 * the worker JVM does not use a program's launch options.  With a run
+	 * cache, the saved result of a run is reused when its classes, input
+	 * and settings are unchanged.
+	 * 
+	 * @param programs - Programs and run configurations
+	 * @param dir - working directory in which to run the programs
+	 * @param runMode - how to run the programs
+	 * @param cache - saved run results, or null to run every program
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void runJavaPrograms(ProgramInfo[] programs, File dir, int runMode, RunCache cache) throws IOException, InterruptedException
+	{
+		WorkerJvm worker = runMode == RUN_MODE_WORKER ? new WorkerJvm(dir) : null;
+		try
+		{
+			runJavaPrograms(programs, dir, runMode == RUN_MODE_REDIRECT, worker, cache);
+		}
+		finally
+		{
+			if (worker != null)
+			{
+				worker.close();
+			}
+		}
+	}
+
+	private void runJavaPrograms(ProgramInfo[] programs, File dir, boolean redirect, WorkerJvm worker, RunCache cache) throws IOException, InterruptedException
 	{
 		Runtime r = Runtime.getRuntime();
+		String classHash = null;
+		String dataHash = null;
+		if (cache != null)
+		{
+			classHash = RunCache.hashClassFiles(dir);
+			dataHash = RunCache.hashDataFiles(dir, getDataFiles(programs));
+		}
 		
 		for (ProgramInfo pi : programs)
 		{
@@ -876,12 +1090,20 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 				File securityPolicyFile = new File(securityPolicyFileStr);
 				securityPolicyURI = securityPolicyFile.toURI();
 			}
-			for (RunConfiguration rc : pi.getRunConfigurations())
+			/* Timings of the benchmark run configurations, by run. */
+			HashMap<String, BenchmarkStats> benchmarks = new HashMap<String, BenchmarkStats>();
+			for (RunConfiguration rc : expandBenchmarkRuns(pi.getRunConfigurations()))
 			{
 				StringBuffer output = new StringBuffer();
 				String[] args = rc.getArguments();
 				String[] properties = rc.getProperties();
-				int maxArgs = args.length + 2;
+				String[] launchOptions = pi.getLaunchOptions();
+				File sharedArchive = pi.getSharedArchive();
+				int maxArgs = args.length + 2 + launchOptions.length;
+				if (sharedArchive != null)
+				{
+					maxArgs += 1;
+				}
 				if (classpath != null)
 				{
 					maxArgs += 2;
@@ -897,6 +1119,13 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 				int numArgs = 0;
 				String[] cmd = new String[maxArgs];
 				cmd[numArgs++] = "java";
+				// Start the JVM with the program's launch profile.
+				System.arraycopy(launchOptions, 0, cmd, numArgs, launchOptions.length);
+				numArgs += launchOptions.length;
+				if (sharedArchive != null)
+				{
+					cmd[numArgs++] = "-XX:SharedArchiveFile=" + sharedArchive.getAbsolutePath();
+				}
 				if (classpath != null)
 				{
 					cmd[numArgs++] = "-classpath";
@@ -923,12 +1152,38 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 				cmd[numArgs++] = program;
 				System.arraycopy(args, 0, cmd, numArgs, args.length);
 				numArgs += args.length;
-				System.out.println("Running " + name + " program " + program);
 				try
 				{
+					boolean inWorker = worker != null && securityPolicyURI == null;
+					/* Reuse the saved result of the same run, if there is one. */
+					String cacheKey = null;
+					if (cache != null && rc.getOutputFile(dir.getAbsolutePath()) == null && !rc.isBenchmark())
+					{
+						String mode = redirect ? "redirect" : inWorker ? "worker" : "process";
+						cacheKey = RunCache.key(classHash,
+								new String[] { name, program, rc.getName(), dataHash, SharedArchive.javaVersion(), classpath, securityPolicyFileStr, mode, String.join(" ", launchOptions), rc.describeReportSettings() },
+								args, properties, new File[] { rc.getInputFile(dir.getAbsolutePath()), rc.getExpectedOutputFile(),
+										securityPolicyFileStr != null ? new File(securityPolicyFileStr) : null });
+						RunCache.Entry saved = cache.get(cacheKey);
+						if (saved != null)
+						{
+							System.out.println("Reusing saved run of " + name + " program " + program);
+							programOutputs.put(program + '.' + rc.getName(), saved.output);
+							programStats.put(program + '.' + rc.getName(), saved.stats);
+							continue;
+						}
+					}
+					System.out.println("Running " + name + " program " + program);
+					/*
+					 * When redirecting, the operating system reads a plain
+					 * input file, and writes the output to files.
+					 */
+					File inputFile = rc.getInputFile(dir.getAbsolutePath());
+					boolean redirectInput = redirect && inputFile != null && inputFile.isFile();
+					File outputFile = rc.getOutputFile(dir.getAbsolutePath());
 					/* Setup input for the program, if any. */
 					BufferedInputStream programInput = null;
-					FileInputStream inputStream = rc.openInputFile(dir.getAbsolutePath());
+					FileInputStream inputStream = inWorker || redirectInput ? null : rc.openInputFile(dir.getAbsolutePath());
 					if (inputStream != null)
 					{
 						programInput = new BufferedInputStream(inputStream);
@@ -939,106 +1194,248 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 					 * Setup output for the program, either to an output file or
 					 * memory buffer.
 					 */
-					OutputStream outputStream = rc.openOutputFile(dir.getAbsolutePath());
-					ByteArrayOutputStream storedOutputStream = null;
-					if (outputStream == null)
+					OutputStream outputStream = outputFile != null && !redirect ? rc.openOutputFile(dir.getAbsolutePath()) : null;
+					CappedOutputStream storedOutputStream = null;
+					if (outputFile == null)
 					{
-						/* Collect output in a ByteArrayOutputStream. */
-						storedOutputStream = new ByteArrayOutputStream(MAX_STD_OUTPUT_SIZE);
+						/* Collect the start (and optionally the end) of the output. */
+						storedOutputStream = rc.createOutputCapture();
 						outputStream = storedOutputStream;
 					}
-					BufferedOutputStream programOutput = new BufferedOutputStream(outputStream);
+					/*
+					 * Compare the output with the expected output as it is
+					 * written; redirected output is compared from its file.
+					 */
+					OutputComparator comparator = null;
+					if (rc.hasExpectedOutput())
+					{
+						comparator = rc.createOutputComparator(outputStream != null && !redirect ? outputStream : OutputStream.nullOutputStream());
+						if (!redirect)
+						{
+							outputStream = comparator;
+						}
+					}
+					BufferedOutputStream programOutput = outputStream != null ? new BufferedOutputStream(outputStream) : null;
 					StreamConnector stdoutConnector = null;
 
 					/* Setup error output for the program. */
-					ByteArrayOutputStream storedErrorStream = new ByteArrayOutputStream(MAX_ERROR_OUTPUT_SIZE);
+					CappedOutputStream storedErrorStream = rc.createOutputCapture();
 					BufferedOutputStream programError = new BufferedOutputStream(storedErrorStream);
 					StreamConnector stderrConnector = null;
+					/* The threads copying the program's input and output end with the run. */
+					RunScope scope = new RunScope(name + " " + program + " run " + rc.getName());
 					
 					try
 					{
-						final Process process = r.exec(cmd, null, dir);
-
-						/*
-						 * Connect and start the threads to copy stdin, stdout,
-						 * and stderr for the child process.
-						 */
-						if (programInput != null)
+						int exitValue;
+						boolean timedOut;
+						long startNanos = System.nanoTime();
+						long wallNanos;
+						Watchdog runWatchdog;
+						if (inWorker)
 						{
-							stdinConnector = new StreamConnector(programInput, process.getOutputStream(), false, true, "StdIn");
-							stdinConnector.start();
+							final WorkerJvm runWorker = worker;
+							setLimitListener(storedOutputStream, storedErrorStream, comparator, new Runnable() {
+								public void run()
+								{
+									runWorker.stopRun();
+								}
+							});
+							exitValue = worker.run(program, classpath, args, properties, rc.getInputFile(dir.getAbsolutePath()),
+									programOutput, programError, rc.getTimeoutMillis());
+							wallNanos = System.nanoTime() - startNanos;
+							runWatchdog = worker.getWatchdog();
+							timedOut = worker.isTimedOut();
+							programOutput.flush();
+							programError.flush();
 						}
+						else if (redirect)
+						{
+							File stdoutFile = outputFile != null ? outputFile : File.createTempFile("stdout", ".txt");
+							File stderrFile = File.createTempFile("stderr", ".txt");
+							try
+							{
+								ProcessBuilder pb = new ProcessBuilder(cmd);
+								pb.directory(dir);
+								if (redirectInput)
+								{
+									pb.redirectInput(Redirect.from(inputFile));
+								}
+								pb.redirectOutput(Redirect.to(stdoutFile));
+								pb.redirectError(Redirect.to(stderrFile));
+								final Process process = pb.start();
+								scope.closeOnCancel(process.getOutputStream());
+								if (programInput != null)
+								{
+									stdinConnector = new StreamConnector(programInput, process.getOutputStream(), false, true, "StdIn");
+									stdinConnector.start(scope);
+								}
 
-						stdoutConnector = new StreamConnector(process.getInputStream(), programOutput, "StdOut");
-						stdoutConnector.start();
+								final Watchdog watchdog = Watchdog.watch(process, rc.getTimeoutMillis());
+								if (rc.getOutputKillLimit() > 0)
+								{
+									watchdog.limitFileSize(new File[] { stdoutFile, stderrFile }, rc.getOutputKillLimit());
+								}
+								process.waitFor();
+								wallNanos = System.nanoTime() - startNanos;
+								watchdog.cancel();
+								runWatchdog = watchdog;
+								timedOut = watchdog.isTimedOut();
+								exitValue = process.exitValue();
+								process.getOutputStream().close();
 
-						stderrConnector = new StreamConnector(process.getErrorStream(), programError, "StdErr");
-						stderrConnector.start();
+								/* Read the start and end of the output files. */
+								if (storedOutputStream != null)
+								{
+									storedOutputStream.writeFile(stdoutFile);
+								}
+								storedErrorStream.writeFile(stderrFile);
+								if (comparator != null)
+								{
+									FileInputStream stdoutInput = new FileInputStream(stdoutFile);
+									try
+									{
+										StreamConnector.Streams.copy(stdoutInput, comparator);
+									}
+									finally
+									{
+										stdoutInput.close();
+									}
+								}
+							}
+							finally
+							{
+								if (outputFile == null)
+								{
+									stdoutFile.delete();
+								}
+								stderrFile.delete();
+							}
+						}
+						else
+						{
+							final Process process = r.exec(cmd, null, dir);
+							scope.closeOnCancel(process.getOutputStream());
+							scope.closeOnCancel(process.getInputStream());
+							scope.closeOnCancel(process.getErrorStream());
+
+							/*
+							 * Connect and start the threads to copy stdin, stdout,
+							 * and stderr for the child process.
+							 */
+							if (programInput != null)
+							{
+								stdinConnector = new StreamConnector(programInput, process.getOutputStream(), false, true, "StdIn");
+								stdinConnector.start(scope);
+							}
+
+							stdoutConnector = new StreamConnector(process.getInputStream(), programOutput, "StdOut");
+							stdoutConnector.start(scope);
 
-						/*
-						 *  Setup a timer to expire and terminate the child
-						 *  process after a reasonable delay.
-						 */
-					    Timer t = new Timer();
-					    t.schedule(new TimerTask() {
+							stderrConnector = new StreamConnector(process.getErrorStream(), programError, "StdErr");
+							stderrConnector.start(scope);
+
+							/*
+							 *  Have the watchdog terminate the child process, and
+							 *  any processes it started, after the run's time limit.
+							 */
+							final Watchdog watchdog = Watchdog.watch(process, rc.getTimeoutMillis());
+							/* Stop the process early if it writes too much output. */
+							setLimitListener(storedOutputStream, storedErrorStream, comparator, new Runnable() {
+								public void run()
+								{
+									watchdog.stop();
+								}
+							});
+							process.waitFor();
+							wallNanos = System.nanoTime() - startNanos;
+							watchdog.cancel();
+							runWatchdog = watchdog;
+							timedOut = watchdog.isTimedOut();
 
-					        @Override
-					        public void run() {
-					            process.destroy();
-					        }
-					    }, 15000);   // it will kill the process after 15 seconds (if it's not finished yet).
-					    process.waitFor();
-					    t.cancel();
-					    
-					    stdoutConnector.join();
-					    stderrConnector.join();
+							/*
+							 * Wait for the rest of the output, but only briefly if
+							 * something the program started keeps the pipes open.
+							 */
+							scope.close();
+							exitValue = process.exitValue();
+						}
 
 						/* Read stdout and stderr into output arraylist. */
 						if (storedOutputStream != null)
 						{
-							if (storedOutputStream.size() == 0)
+							if (storedOutputStream.getTotal() == 0)
 							{
 								output.append(String.format("----- No output from %s java %s run %s ------\n", name, program, rc.getName()));
 							}
 							else
 							{
 								output.append(String.format("----- Start of output from %s java %s run %s ------\n", name, program, rc.getName()));
-								ByteArrayInputStream conv = new ByteArrayInputStream(storedOutputStream.toByteArray());
-								Scanner in = new Scanner(conv);
-								while (in.hasNextLine())
-								{
-									output.append(in.nextLine());
-									output.append('\n');
-								}
-								in.close();
+								appendCapturedOutput(output, storedOutputStream);
 								output.append(String.format("----- End of output from %s java %s run %s ------\n", name, program, rc.getName()));
 							}
 						}
-						if (storedErrorStream != null)
+						if (storedErrorStream.getTotal() != 0)
 						{
-							if (storedErrorStream.size() != 0)
-							{
-								output.append(String.format("----- Start of error output from %s java %s run %s ------\n", name, program, rc.getName()));
-								ByteArrayInputStream conv = new ByteArrayInputStream(storedErrorStream.toByteArray());
-								Scanner errIn = new Scanner(conv);
-								while (errIn.hasNextLine())
-								{
-									output.append(errIn.nextLine());
-									output.append('\n');
-								}
-								errIn.close();
-								output.append(String.format("----- End of error output from %s java %s run %s ------\n", name, program, rc.getName()));
-							}
+							output.append(String.format("----- Start of error output from %s java %s run %s ------\n", name, program, rc.getName()));
+							appendCapturedOutput(output, storedErrorStream);
+							output.append(String.format("----- End of error output from %s java %s run %s ------\n", name, program, rc.getName()));
 						}
 
-						if (process.exitValue() != 0)
+						if (comparator != null)
 						{
-							output.append(String.format("*** %s java %s run %s exit code %d\n", name, program, rc.getName(), process.exitValue()));
+							comparator.finish();
+							appendComparison(output, comparator, String.format("%s java %s run %s", name, program, rc.getName()));
+						}
+
+						if ((storedOutputStream != null && storedOutputStream.isLimitReached()) || storedErrorStream.isLimitReached())
+						{
+							output.append(String.format("*** %s java %s run %s stopped for writing too much output\n", name, program, rc.getName()));
+						}
+						if (comparator != null && comparator.isStopped() && !redirect)
+						{
+							output.append(String.format("*** %s java %s run %s stopped for differing from expected output\n", name, program, rc.getName()));
+						}
+						if (timedOut)
+						{
+							output.append(String.format("*** %s java %s run %s stopped after %.1f seconds\n", name, program, rc.getName(), rc.getTimeoutMillis() / 1000.0));
+						}
+						if (exitValue != 0)
+						{
+							output.append(String.format("*** %s java %s run %s exit code %d\n", name, program, rc.getName(), exitValue));
 						}
 						programOutputs.put(program + '.' + rc.getName(), output.toString());
+						RunStats stats = new RunStats(TimeUnit.NANOSECONDS.toMillis(wallNanos),
+								runWatchdog.getCpuMillis(), runWatchdog.getPeakMemoryKb());
+						programStats.put(program + '.' + rc.getName(), stats);
+						if (cacheKey != null && !timedOut)
+						{
+							cache.put(cacheKey, exitValue, stats, output.toString());
+						}
+						if (rc.isBenchmark())
+						{
+							BenchmarkStats benchmark = benchmarks.get(rc.getName());
+							if (benchmark == null)
+							{
+								benchmark = new BenchmarkStats(rc.getBenchmarkWarmups(), rc.getBenchmarkReferenceMillis());
+								benchmarks.put(rc.getName(), benchmark);
+							}
+							int result = BenchmarkStats.RUN_CLEAN;
+							if (timedOut)
+							{
+								result = BenchmarkStats.RUN_TIMED_OUT;
+							}
+							else if (exitValue != 0 || (storedOutputStream != null && storedOutputStream.isLimitReached())
+									|| storedErrorStream.isLimitReached() || (comparator != null && comparator.isStopped()))
+							{
+								result = BenchmarkStats.RUN_FAILED;
+							}
+							benchmark.add(stats, result);
+						}
 					}
 					finally
 					{
+						scope.close();
 						if (programInput != null)
 						{
 							programInput.close();
@@ -1047,6 +1444,10 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 						{
 							programOutput.close();
 						}
+						if (comparator != null)
+						{
+							comparator.close();
+						}
 					}
 				}
 				catch (IOException e)
@@ -1058,7 +1459,100 @@ public class AssignmentResults implements Comparable<AssignmentResults>{
 					programOutputs.put(program + '.' + rc.getName(), "InterruptedException: " + e.getMessage());
 				}
 			}	
+			/* Add the timings of each benchmark after the output of its last run. */
+			for (String rcName : benchmarks.keySet())
+			{
+				String key = program + '.' + rcName;
+				String output = programOutputs.get(key);
+				programOutputs.put(key, (output == null ? "" : output)
+						+ benchmarks.get(rcName).format(String.format("%s java %s run %s", name, program, rcName)));
+			}
+		}
+	}
+	
+	/**
+	 * List the runs to make: each benchmark run configuration appears
+	 * once for each of its warm-up and counted runs.  The runs of a
+	 * benchmark are made one after another, so they do not compete for
+	 * the processor with each other.
+	 */
+	private static ArrayList<RunConfiguration> expandBenchmarkRuns(RunConfiguration[] runConfigurations)
+	{
+		ArrayList<RunConfiguration> runs = new ArrayList<RunConfiguration>();
+		for (RunConfiguration rc : runConfigurations)
+		{
+			int count = rc.isBenchmark() ? rc.getBenchmarkWarmups() + rc.getBenchmarkIterations() : 1;
+			for (int i = 0; i < count; i++)
+			{
+				runs.add(rc);
+			}
+		}
+		return runs;
+	}
+
+	/**
+	 * Set the action taken when either captured stream passes its kill limit.
+	 */
+	private static void setLimitListener(CappedOutputStream stdout, CappedOutputStream stderr, OutputComparator comparator, Runnable listener)
+	{
+		if (stdout != null)
+		{
+			stdout.setLimitListener(listener);
+		}
+		stderr.setLimitListener(listener);
+		if (comparator != null)
+		{
+			comparator.setMismatchListener(listener);
+		}
+	}
+
+	/**
+	 * Append the result of comparing a run's output with the expected
+	 * output, and the first differences.
+	 */
+	private static void appendComparison(StringBuffer output, OutputComparator comparator, String run)
+	{
+		if (comparator.matches())
+		{
+			output.append(String.format("----- Output of %s matches expected output (%d lines) ------\n", run, comparator.getLineCount()));
+			return;
+		}
+		output.append(String.format("----- Output of %s differs from expected output: %d of %d lines ------\n",
+				run, comparator.getMismatches(), comparator.getLineCount()));
+		for (String d : comparator.getDiff())
+		{
+			output.append(d);
+			output.append('\n');
 		}
+		if (comparator.getMismatches() > comparator.getDiff().size())
+		{
+			output.append(String.format("----- %d more differences omitted ------\n", comparator.getMismatches() - comparator.getDiff().size()));
+		}
+	}
+
+	/**
+	 * Append the lines of captured output, noting how much was discarded.
+	 */
+	private static void appendCapturedOutput(StringBuffer output, CappedOutputStream capture)
+	{
+		appendLines(output, capture.getHead());
+		if (capture.getDiscarded() > 0)
+		{
+			output.append(String.format("----- %d bytes of output omitted ------\n", capture.getDiscarded()));
+			appendLines(output, capture.getTail());
+		}
+	}
+
+	private static void appendLines(StringBuffer output, byte[] bytes)
+	{
+		ByteArrayInputStream conv = new ByteArrayInputStream(bytes);
+		Scanner in = new Scanner(conv);
+		while (in.hasNextLine())
+		{
+			output.append(in.nextLine());
+			output.append('\n');
+		}
+		in.close();
 	}
 	
 	public int hashCode()
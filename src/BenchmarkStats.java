@@ -0,0 +1,177 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Timings of the repeated runs of a benchmark run configuration (see
+ * RunConfiguration).  The first warm-up runs are not counted; of the
+ * rest, runs that failed or timed out are only counted as such, and for
+ * the runs that finished cleanly the minimum, median and 90th percentile
+ * of the elapsed and CPU times are reported, with the ratio of the
+ * median elapsed time to a reference solution's time if one is given.
+ * CPU times are only reported when they are known for most of the
+ * counted runs, since runs too short for the watchdog to sample twice
+ * have none, and the few longer runs would give a misleading picture.
+ */
+public class BenchmarkStats {
+	public final static int RUN_CLEAN = 0;
+	public final static int RUN_FAILED = 1;
+	public final static int RUN_TIMED_OUT = 2;
+
+	private int warmups;
+	private long referenceMillis;
+	private int completedRuns;
+	private int failedRuns;
+	private int timedOutRuns;
+	private ArrayList<RunStats> runs;
+
+	/**
+	 * Create the timings of a benchmark.
+	 * @param _warmups - number of runs not counted
+	 * @param _referenceMillis - elapsed time of the reference solution, or 0
+	 */
+	public BenchmarkStats(int _warmups, long _referenceMillis)
+	{
+		warmups = _warmups;
+		referenceMillis = _referenceMillis;
+		runs = new ArrayList<RunStats>();
+	}
+
+	/**
+	 * Add a completed run.  Its times are only counted if it finished
+	 * cleanly.
+	 * @param stats - resources used by the run
+	 * @param result - RUN_CLEAN, RUN_FAILED if the run exited with an error
+	 *  or was stopped, or RUN_TIMED_OUT if it ran out of time
+	 */
+	public void add(RunStats stats, int result)
+	{
+		if (completedRuns++ < warmups)
+		{
+			return;
+		}
+		if (result == RUN_TIMED_OUT)
+		{
+			timedOutRuns++;
+		}
+		else if (result == RUN_FAILED)
+		{
+			failedRuns++;
+		}
+		else
+		{
+			runs.add(stats);
+		}
+	}
+
+	/**
+	 * Get the number of runs counted.
+	 * @return number of clean runs after the warm-up runs
+	 */
+	public int getRunCount()
+	{
+		return runs.size();
+	}
+
+	/**
+	 * Get the median elapsed time of the counted runs.
+	 * @return milliseconds, or RunStats.UNKNOWN if no runs were counted
+	 */
+	public long getMedianWallMillis()
+	{
+		return median(getWallMillis());
+	}
+
+	/**
+	 * Describe the timings for the grading report.
+	 * @param run - description of the run configuration
+	 * @return lines of the report
+	 */
+	public String format(String run)
+	{
+		StringBuffer r = new StringBuffer();
+		r.append(String.format("----- Benchmark of %s: %d runs after %d warm-up runs ------\n", run, runs.size(), warmups));
+		if (failedRuns > 0 || timedOutRuns > 0)
+		{
+			r.append(String.format("Not counted: %d failed runs, %d timed out runs\n", failedRuns, timedOutRuns));
+		}
+		if (runs.size() == 0)
+		{
+			r.append("No runs finished cleanly\n");
+			return r.toString();
+		}
+		r.append("Elapsed time: " + formatTimes(getWallMillis()) + "\n");
+		long[] cpu = getCpuMillis();
+		if (cpu.length * 2 > runs.size())
+		{
+			r.append("CPU time: " + formatTimes(cpu) + "\n");
+		}
+		if (referenceMillis > 0)
+		{
+			r.append(String.format("Median elapsed time is %.2f times the reference time of %.2f s\n",
+					(double) getMedianWallMillis() / referenceMillis, referenceMillis / 1000.0));
+		}
+		return r.toString();
+	}
+
+	private long[] getWallMillis()
+	{
+		long[] times = new long[runs.size()];
+		for (int i = 0; i < times.length; i++)
+		{
+			times[i] = runs.get(i).getWallMillis();
+		}
+		Arrays.sort(times);
+		return times;
+	}
+
+	/**
+	 * Get the CPU times of the counted runs that have one, sorted.
+	 */
+	private long[] getCpuMillis()
+	{
+		long[] times = new long[runs.size()];
+		int count = 0;
+		for (RunStats stats : runs)
+		{
+			if (stats.getCpuMillis() != RunStats.UNKNOWN)
+			{
+				times[count++] = stats.getCpuMillis();
+			}
+		}
+		times = Arrays.copyOf(times, count);
+		Arrays.sort(times);
+		return times;
+	}
+
+	private static String formatTimes(long[] sorted)
+	{
+		return String.format("min %.2f s, median %.2f s, 90th percentile %.2f s",
+				sorted[0] / 1000.0, median(sorted) / 1000.0, percentile(sorted, 90) / 1000.0);
+	}
+
+	/**
+	 * Get the median of sorted values.
+	 */
+	private static long median(long[] sorted)
+	{
+		int n = sorted.length;
+		if (n == 0)
+		{
+			return RunStats.UNKNOWN;
+		}
+		if (n % 2 == 1)
+		{
+			return sorted[n / 2];
+		}
+		return (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+	}
+
+	/**
+	 * Get a percentile of sorted values, by the nearest-rank method.
+	 */
+	private static long percentile(long[] sorted, int p)
+	{
+		int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+}
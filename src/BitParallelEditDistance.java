@@ -0,0 +1,191 @@
+import java.util.HashMap;
+
+/**
+ * Compute the Levenshtein Edit Distance using bit-vector arithmetic
+ * (Myers' algorithm, as extended to blocks of 64-bit words by Hyyro).
+ * Each column of the edit distance matrix is kept as vertical +1/-1
+ * delta bit vectors, so 64 matrix cells are updated with a handful
+ * of word operations instead of one Math.min chain per cell.
+ * Gives the same results as StringSimilarity.editDistance.
+ */
+public class BitParallelEditDistance {
+	private static final int WORD_SIZE = 64;
+	private static final int ASCII_SIZE = 128;
+
+	/**
+	 * Compute the Levenshtein Edit Distance between two strings,
+	 * ignoring case.
+	 * @param s1 - one string
+	 * @param s2 - another string
+	 * @return Edit distance between strings
+	 */
+	public static int editDistance(String s1, String s2)
+	{
+		return editDistance(s1, s2, Math.max(s1.length(), s2.length()));
+	}
+
+	/**
+	 * Compute the Levenshtein Edit Distance between two strings,
+	 * ignoring case, if it is no more than maxDistance.
+	 * @param s1 - one string
+	 * @param s2 - another string
+	 * @param maxDistance - largest edit distance of interest
+	 * @return Edit distance between strings, or maxDistance + 1 if the
+	 *  distance is greater than maxDistance
+	 */
+	public static int editDistance(String s1, String s2, int maxDistance)
+	{
+		char[] a = s1.toLowerCase().toCharArray();
+		char[] b = s2.toLowerCase().toCharArray();
+		return editDistance(a, a.length, b, b.length, maxDistance);
+	}
+
+	/**
+	 * Bit-parallel Levenshtein Edit Distance over character arrays.
+	 * The shorter string is used as the pattern (the bit vectors), and
+	 * the computation stops once the distance cannot come back under
+	 * maxDistance in the columns that remain.
+	 * @param a - one string
+	 * @param n - number of characters of a to use
+	 * @param b - another string
+	 * @param m - number of characters of b to use
+	 * @param maxDistance - largest edit distance of interest
+	 * @return Edit distance, or maxDistance + 1 if it exceeds maxDistance
+	 * @throws IllegalArgumentException if maxDistance is negative
+	 */
+	static int editDistance(char[] a, int n, char[] b, int m, int maxDistance)
+	{
+		if (maxDistance < 0)
+		{
+			throw new IllegalArgumentException("Negative maximum edit distance: " + maxDistance);
+		}
+		if (m > n)
+		{
+			char[] swap = a; a = b; b = swap;
+			int swapLength = n; n = m; m = swapLength;
+		}
+		/* Now b (length m) is the pattern and a (length n) is the text. */
+		if (n - m > maxDistance)
+		{
+			return maxDistance + 1;
+		}
+		if (m == 0)
+		{
+			return n;
+		}
+
+		int blocks = (m + WORD_SIZE - 1) / WORD_SIZE;
+		long lastRowBit = 1L << ((m - 1) % WORD_SIZE);
+
+		/*
+		 * Build the match vectors: peq[symbol][block] has bit i set when
+		 * pattern position block * 64 + i holds the symbol.  Symbol 0 is
+		 * reserved for characters that do not occur in the pattern.
+		 */
+		int[] asciiSymbols = new int[ASCII_SIZE];
+		HashMap<Character, Integer> otherSymbols = null;
+		int symbolCount = 1;
+		int[] patternSymbols = new int[m];
+		for (int i = 0; i < m; i++)
+		{
+			char c = b[i];
+			int symbol;
+			if (c < ASCII_SIZE)
+			{
+				symbol = asciiSymbols[c];
+				if (symbol == 0)
+				{
+					symbol = asciiSymbols[c] = symbolCount++;
+				}
+			}
+			else
+			{
+				if (otherSymbols == null)
+				{
+					otherSymbols = new HashMap<Character, Integer>();
+				}
+				Integer s = otherSymbols.get(c);
+				if (s == null)
+				{
+					s = symbolCount++;
+					otherSymbols.put(c, s);
+				}
+				symbol = s;
+			}
+			patternSymbols[i] = symbol;
+		}
+		long[] peq = new long[symbolCount * blocks];
+		for (int i = 0; i < m; i++)
+		{
+			peq[patternSymbols[i] * blocks + i / WORD_SIZE] |= 1L << (i % WORD_SIZE);
+		}
+
+		/* Column 0: D[i][0] = i, so every vertical delta is +1. */
+		long[] pv = new long[blocks];
+		long[] mv = new long[blocks];
+		for (int r = 0; r < blocks; r++)
+		{
+			pv[r] = -1L;
+		}
+		int score = m;
+
+		for (int j = 0; j < n; j++)
+		{
+			char c = a[j];
+			int symbol;
+			if (c < ASCII_SIZE)
+			{
+				symbol = asciiSymbols[c];
+			}
+			else
+			{
+				Integer s = otherSymbols == null ? null : otherSymbols.get(c);
+				symbol = s == null ? 0 : s;
+			}
+			int peqBase = symbol * blocks;
+
+			/* Row 0 is D[0][j] = j, so the delta entering the top block is +1. */
+			int hin = 1;
+			for (int r = 0; r < blocks; r++)
+			{
+				long eq = peq[peqBase + r];
+				long pvr = pv[r];
+				long mvr = mv[r];
+				long hinNegative = hin < 0 ? 1L : 0L;
+				long xv = eq | mvr;
+				eq |= hinNegative;
+				long xh = (((eq & pvr) + pvr) ^ pvr) | eq;
+				long ph = mvr | ~(xh | pvr);
+				long mh = pvr & xh;
+				long highBit = r == blocks - 1 ? lastRowBit : Long.MIN_VALUE;
+				int hout = 0;
+				if ((ph & highBit) != 0)
+				{
+					hout = 1;
+				}
+				else if ((mh & highBit) != 0)
+				{
+					hout = -1;
+				}
+				ph <<= 1;
+				mh <<= 1;
+				mh |= hinNegative;
+				if (hin > 0)
+				{
+					ph |= 1L;
+				}
+				pv[r] = mh | ~(xv | ph);
+				mv[r] = ph & xv;
+				hin = hout;
+			}
+			score += hin;
+
+			/* Each remaining column can lower the score by at most one. */
+			if (score - (n - j - 1) > maxDistance)
+			{
+				return maxDistance + 1;
+			}
+		}
+		return score <= maxDistance ? score : maxDistance + 1;
+	}
+}
@@ -0,0 +1,235 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Output stream that keeps a bounded amount of a program's output: the
+ * first headLimit bytes and, optionally, the last tailLimit bytes.  The
+ * bytes in between are counted and discarded, so a program printing in
+ * an endless loop cannot fill the grading program's memory.  Once more
+ * than killLimit bytes have been written, if a kill limit is set, the
+ * limit listener is called once, so the program can be stopped early.
+ * Safe for use by several threads at once.
+ */
+public class CappedOutputStream extends OutputStream {
+	private byte[] head;
+	private int headLength;
+	private byte[] tail;
+	private int tailStart;
+	private int tailLength;
+	private long total;
+	private long killLimit;
+	private Runnable limitListener;
+	private boolean limitReached;
+
+	/**
+	 * Create a capped stream.
+	 * @param headLimit - number of bytes kept from the start of the output
+	 * @param tailLimit - number of bytes kept from the end of the output, or 0
+	 * @param _killLimit - number of bytes after which the limit listener is
+	 *  called, or 0 for no limit
+	 */
+	public CappedOutputStream(int headLimit, int tailLimit, long _killLimit)
+	{
+		head = new byte[Math.max(0, headLimit)];
+		tail = new byte[Math.max(0, tailLimit)];
+		killLimit = _killLimit;
+	}
+
+	/**
+	 * Set the action taken when more than the kill limit has been
+	 * written, such as stopping the program.  If the limit has already
+	 * been passed, the action is taken now.
+	 * @param listener - action to take
+	 */
+	public void setLimitListener(Runnable listener)
+	{
+		boolean reached;
+		synchronized (this)
+		{
+			limitListener = listener;
+			reached = limitReached;
+		}
+		if (reached)
+		{
+			listener.run();
+		}
+	}
+
+	public void write(int b)
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len)
+	{
+		Runnable listener;
+		synchronized (this)
+		{
+			total += len;
+			int toHead = Math.min(len, head.length - headLength);
+			System.arraycopy(b, off, head, headLength, toHead);
+			headLength += toHead;
+			off += toHead;
+			len -= toHead;
+			if (len > 0 && tail.length > 0)
+			{
+				/* Only the last tail.length bytes of this write can stay in the tail. */
+				int skip = Math.max(0, len - tail.length);
+				off += skip;
+				len -= skip;
+				for (int i = 0; i < len; i++)
+				{
+					int end = (tailStart + tailLength) % tail.length;
+					tail[end] = b[off + i];
+					if (tailLength < tail.length)
+					{
+						tailLength++;
+					}
+					else
+					{
+						tailStart = (tailStart + 1) % tail.length;
+					}
+				}
+			}
+			listener = checkLimit();
+		}
+		if (listener != null)
+		{
+			listener.run();
+		}
+	}
+
+	/**
+	 * Count bytes of output that are discarded without being written.
+	 * @param n - number of bytes
+	 */
+	public void skip(long n)
+	{
+		Runnable listener;
+		synchronized (this)
+		{
+			total += n;
+			listener = checkLimit();
+		}
+		if (listener != null)
+		{
+			listener.run();
+		}
+	}
+
+	/**
+	 * Write the head and tail of a file's contents, skipping the middle
+	 * without reading it.
+	 * @param f - file to write
+	 * @throws IOException
+	 */
+	public void writeFile(File f) throws IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(f, "r");
+		try
+		{
+			long length = in.length();
+			long headEnd;
+			synchronized (this)
+			{
+				headEnd = Math.min(length, head.length - headLength);
+			}
+			writeRange(in, 0, headEnd);
+			long tailStart = Math.max(headEnd, length - tail.length);
+			skip(tailStart - headEnd);
+			writeRange(in, tailStart, length);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the bytes of a file from start up to end.
+	 */
+	private void writeRange(RandomAccessFile in, long start, long end) throws IOException
+	{
+		byte[] buf = new byte[CopyFile.BUFFER_SIZE];
+		in.seek(start);
+		while (start < end)
+		{
+			int n = in.read(buf, 0, (int) Math.min(buf.length, end - start));
+			if (n < 0)
+			{
+				break;
+			}
+			write(buf, 0, n);
+			start += n;
+		}
+	}
+
+	/**
+	 * Note when the kill limit is first passed.
+	 * @return listener to call, or null
+	 */
+	private Runnable checkLimit()
+	{
+		if (killLimit > 0 && total > killLimit && !limitReached)
+		{
+			limitReached = true;
+			return limitListener;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the total number of bytes written.
+	 * @return number of bytes
+	 */
+	public synchronized long getTotal()
+	{
+		return total;
+	}
+
+	/**
+	 * Determine whether more than the kill limit has been written.
+	 * @return true if the limit was passed
+	 */
+	public synchronized boolean isLimitReached()
+	{
+		return limitReached;
+	}
+
+	/**
+	 * Get the bytes kept from the start of the output.
+	 * @return head of the output
+	 */
+	public synchronized byte[] getHead()
+	{
+		byte[] result = new byte[headLength];
+		System.arraycopy(head, 0, result, 0, headLength);
+		return result;
+	}
+
+	/**
+	 * Get the bytes kept from the end of the output, following the
+	 * discarded bytes.
+	 * @return tail of the output
+	 */
+	public synchronized byte[] getTail()
+	{
+		byte[] result = new byte[tailLength];
+		for (int i = 0; i < tailLength; i++)
+		{
+			result[i] = tail[(tailStart + i) % tail.length];
+		}
+		return result;
+	}
+
+	/**
+	 * Get the number of bytes neither in the head nor in the tail.
+	 * @return number of discarded bytes
+	 */
+	public synchronized long getDiscarded()
+	{
+		return total - headLength - tailLength;
+	}
+}
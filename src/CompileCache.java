@@ -0,0 +1,332 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compilation results saved between grading runs.  An entry is keyed
+ * by a SHA-256 hash of the names and contents of the (package-stripped)
+ * Java files, the classpath setting and the contents of its jars, and
+ * the compiler used and its version, so an entry is shared by every
+ * submission with the same sources, such as unmodified starter code,
+ * and is not used after the JDK or a jar is updated.  Each entry is a directory holding the
+ * compiler messages and the class files the compilation produced; on a
+ * hit the class files are copied into the student's directory instead
+ * of compiling.  Entries are written to a temporary directory and then
+ * renamed into place, so the cache is safe for use by several threads
+ * or grading runs at once.
+ */
+public class CompileCache {
+	private final static String RESULT_FILE = "result.txt";
+	private final static String CLASS_SUFFIX = ".class";
+
+	/* Hashes of classpath jars, by path, length and modification time. */
+	private final static ConcurrentHashMap<String, String> jarHashes = new ConcurrentHashMap<String, String>();
+	private static String javacVersion;
+
+	private File directory;
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Saved result of compiling a set of Java files.
+	 */
+	public static class Entry {
+		public final boolean success;
+		public final String output;
+
+		Entry(boolean _success, String _output)
+		{
+			success = _success;
+			output = _output;
+		}
+	}
+
+	/**
+	 * Use a cache directory, creating it if needed.
+	 * @param _directory - cache directory
+	 * @throws IOException
+	 */
+	public CompileCache(File _directory) throws IOException
+	{
+		directory = _directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Could not create directory: " + directory.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Compute the cache key of a compilation.
+	 * @param dir - working directory containing the Java files
+	 * @param javaFiles - names of the Java files, relative to dir
+	 * @param classpath - classpath setting, or null
+	 * @param inProcess - true for the in-process compiler, false for javac
+	 * @return key, in hexadecimal
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static String key(File dir, List<String> javaFiles, String classpath, boolean inProcess) throws IOException, InterruptedException
+	{
+		MessageDigest digest = newDigest();
+		update(digest, System.getProperty("java.version"));
+		/* The in-process compiler is the one of this JVM. */
+		update(digest, inProcess ? "inProcess" : "javac " + javacVersion());
+		update(digest, classpath == null ? "" : classpath);
+		if (classpath != null)
+		{
+			for (File entry : InProcessCompiler.resolveClasspath(dir, classpath))
+			{
+				if (entry.isFile() && entry.getName().endsWith(".jar"))
+				{
+					update(digest, jarHash(entry));
+				}
+			}
+		}
+		ArrayList<String> sorted = new ArrayList<String>(javaFiles);
+		Collections.sort(sorted);
+		for (String jf : sorted)
+		{
+			update(digest, jf);
+			updateFile(digest, new File(dir, jf));
+		}
+		return toHex(digest);
+	}
+
+	/**
+	 * Get the version of the javac command, once per grading run.
+	 */
+	private static synchronized String javacVersion() throws IOException, InterruptedException
+	{
+		if (javacVersion == null)
+		{
+			javacVersion = SharedArchive.run(new String[] { "javac", "-version" });
+		}
+		return javacVersion;
+	}
+
+	/**
+	 * Hash the contents of a jar, reusing the hash while the jar's length
+	 * and modification time are unchanged.
+	 */
+	private static String jarHash(File jar) throws IOException
+	{
+		String id = jar.getAbsolutePath() + "\0" + jar.length() + "\0" + jar.lastModified();
+		String hash = jarHashes.get(id);
+		if (hash == null)
+		{
+			MessageDigest digest = newDigest();
+			updateFile(digest, jar);
+			hash = toHex(digest);
+			jarHashes.put(id, hash);
+		}
+		return hash;
+	}
+
+	/**
+	 * Create the digest used for cache keys.
+	 */
+	static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Add a string and a separator to a digest.
+	 */
+	static void update(MessageDigest digest, String s)
+	{
+		digest.update(s.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	/**
+	 * Add the length and contents of a file to a digest.
+	 */
+	static void updateFile(MessageDigest digest, File f) throws IOException
+	{
+		update(digest, Long.toString(f.length()));
+		byte[] buf = new byte[CopyFile.BUFFER_SIZE];
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(f));
+		try
+		{
+			int len;
+			while ((len = in.read(buf)) > 0)
+			{
+				digest.update(buf, 0, len);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Get a digest's hash in hexadecimal.
+	 */
+	static String toHex(MessageDigest digest)
+	{
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+		{
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Look up a compilation, and if it is found, copy its class files
+	 * into the working directory.
+	 * @param key - cache key from key()
+	 * @param dir - working directory
+	 * @return saved result, or null if the compilation is not in the cache
+	 * @throws IOException
+	 */
+	public Entry restore(String key, File dir) throws IOException
+	{
+		File entryDir = entryDirectory(key);
+		File resultFile = new File(entryDir, RESULT_FILE);
+		if (!resultFile.isFile())
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		String result = new String(Files.readAllBytes(resultFile.toPath()), StandardCharsets.UTF_8);
+		int newline = result.indexOf('\n');
+		boolean success = result.substring(0, newline).equals("success");
+		String output = result.substring(newline + 1);
+		for (File f : entryDir.listFiles())
+		{
+			if (f.getName().endsWith(CLASS_SUFFIX))
+			{
+				CopyFile.copy(f, new File(dir, f.getName()));
+			}
+		}
+		hits.incrementAndGet();
+		return new Entry(success, output);
+	}
+
+	/**
+	 * List the class files in a working directory with their modification
+	 * times, to be passed to store() after compiling.
+	 * @param dir - working directory
+	 * @return class file names and modification times
+	 */
+	public static HashMap<String, Long> listClassFiles(File dir)
+	{
+		HashMap<String, Long> classFiles = new HashMap<String, Long>();
+		for (File f : dir.listFiles())
+		{
+			if (f.isFile() && f.getName().endsWith(CLASS_SUFFIX))
+			{
+				classFiles.put(f.getName(), f.lastModified());
+			}
+		}
+		return classFiles;
+	}
+
+	/**
+	 * Save a compilation with the class files it wrote: those that are
+	 * new or changed since listClassFiles() was called before compiling.
+	 * If another thread saved the same compilation first, its entry is kept.
+	 * @param key - cache key from key()
+	 * @param dir - working directory
+	 * @param before - class files in dir before compiling
+	 * @param success - whether compilation succeeded
+	 * @param output - compiler messages
+	 * @throws IOException
+	 */
+	public void store(String key, File dir, HashMap<String, Long> before, boolean success, String output) throws IOException
+	{
+		File entryDir = entryDirectory(key);
+		if (entryDir.isDirectory())
+		{
+			return;
+		}
+		File parent = entryDir.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+		{
+			throw new IOException("Could not create directory: " + parent.getAbsolutePath());
+		}
+		File tempDir = Files.createTempDirectory(parent.toPath(), key.substring(0, 8)).toFile();
+		try
+		{
+			for (File f : dir.listFiles())
+			{
+				String name = f.getName();
+				if (f.isFile() && name.endsWith(CLASS_SUFFIX))
+				{
+					Long modTime = before.get(name);
+					if (modTime == null || modTime != f.lastModified())
+					{
+						CopyFile.copy(f, new File(tempDir, name));
+					}
+				}
+			}
+			PrintWriter out = new PrintWriter(new File(tempDir, RESULT_FILE), "UTF-8");
+			out.print(success ? "success\n" : "failure\n");
+			out.print(output);
+			out.close();
+			if (tempDir.renameTo(entryDir))
+			{
+				return;
+			}
+		}
+		catch (IOException e)
+		{
+			deleteDirectory(tempDir);
+			throw e;
+		}
+		/* Lost the race to another thread or grading run. */
+		deleteDirectory(tempDir);
+	}
+
+	/**
+	 * Get the directory of an entry, spread over subdirectories named by
+	 * the first two digits of the key.
+	 */
+	private File entryDirectory(String key)
+	{
+		return new File(new File(directory, key.substring(0, 2)), key);
+	}
+
+	private static void deleteDirectory(File dir)
+	{
+		File[] files = dir.listFiles();
+		if (files != null)
+		{
+			for (File f : files)
+			{
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Describe how many compilations were found in the cache.
+	 */
+	public String toString()
+	{
+		return String.format("%d compilations reused, %d compiled", hits.get(), misses.get());
+	}
+}
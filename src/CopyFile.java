@@ -12,16 +12,17 @@ public class CopyFile {
 
 	public static void copy(File srFile, File dtFile) throws IOException
 	{
-		BufferedInputStream in = new BufferedInputStream(new FileInputStream(srFile));
-		BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(dtFile));
-
-		byte[] buf = new byte[BUFFER_SIZE];
-		int len;
-		while ((len = in.read(buf)) > 0){
-			out.write(buf, 0, len);
+		FileInputStream in = new FileInputStream(srFile);
+		FileOutputStream out = new FileOutputStream(dtFile);
+		try
+		{
+			StreamConnector.Streams.copy(in, out);
+		}
+		finally
+		{
+			in.close();
+			out.close();
 		}
-		in.close();
-		out.close();
 		long modTime = srFile.lastModified();
 		if (modTime != 0L)
 		{
@@ -51,4 +52,13 @@ public class CopyFile {
 		File destFile = new File(destDir + File.separatorChar + destBase);
 		copy(srcFile, destFile);
 	}
+
+	/**
+	 * Get the destination of the copy.
+	 * @return destination path, relative to the destination directory
+	 */
+	public String getDestBase()
+	{
+		return destBase;
+	}
 }
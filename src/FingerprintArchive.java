@@ -0,0 +1,419 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+
+/**
+ * On-disk archive of winnowing fingerprints from earlier grading runs,
+ * so that new submissions can be checked against earlier terms without
+ * extracting or comparing their documents again.
+ *
+ * The archive is a directory of segment files, one per term, named by a
+ * SHA-256 hash of the term.  A segment is written once, sorted by
+ * fingerprint, and never modified; grading a term again replaces only
+ * that term's segment.  Segments are opened with
+ * FileChannel.map and searched in place, so the fingerprints of earlier
+ * terms are never loaded onto the heap.
+ *
+ * Segment layout (big-endian):
+ *   int magic, int version, int studentCount, int documentCount,
+ *   long recordCount, long recordsOffset,
+ *   documentCount x int fingerprintCount,
+ *   documentCount x (int length, UTF-8 label),
+ *   recordCount x (long fingerprint, int document), sorted by fingerprint.
+ */
+public class FingerprintArchive {
+	public final static double ARCHIVE_SIMILARITY_THRESHOLD = 0.5;
+	private final static int MAGIC = 0x47465041; // "GFPA"
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 32;
+	private final static int RECORD_SIZE = 12;
+	private final static String SEGMENT_SUFFIX = ".fpa";
+
+	private File directory;
+	private String term;
+	private ArrayList<Segment> segments;
+	private ArrayList<String> newLabels;
+	private ArrayList<long[]> newFingerprints;
+	private HashSet<String> newStudents;
+
+	/**
+	 * Open the archive in a directory, creating the directory if needed.
+	 * The segment for the given term, if any, is not searched.  Segments
+	 * that cannot be read are skipped with a warning.
+	 * @param _directory - archive directory
+	 * @param _term - name of the term being graded, or null to only
+	 *  search the archive
+	 * @throws IOException
+	 */
+	public FingerprintArchive(File _directory, String _term) throws IOException
+	{
+		directory = _directory;
+		term = _term;
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Could not create directory: " + directory.getAbsolutePath());
+		}
+		segments = new ArrayList<Segment>();
+		File[] files = directory.listFiles();
+		if (files == null)
+		{
+			throw new IOException("Could not list directory: " + directory.getAbsolutePath());
+		}
+		Arrays.sort(files);
+		for (File f : files)
+		{
+			if (f.getName().endsWith(SEGMENT_SUFFIX) && (term == null || !f.getName().equals(segmentName())))
+			{
+				try
+				{
+					segments.add(new Segment(f));
+				}
+				catch (IOException e)
+				{
+					System.out.println("Warning: Skipping fingerprint archive segment: " + e.getMessage());
+				}
+			}
+		}
+		newLabels = new ArrayList<String>();
+		newFingerprints = new ArrayList<long[]>();
+		newStudents = new HashSet<String>();
+	}
+
+	/**
+	 * Get the number of documents in the searchable segments.
+	 * @return number of archived documents
+	 */
+	public long getDocumentCount()
+	{
+		long count = 0;
+		for (Segment s : segments)
+		{
+			count += s.documentCount;
+		}
+		return count;
+	}
+
+	/**
+	 * Find the archived documents that share at least the threshold
+	 * fraction of fingerprints with a document.  Fingerprints found in
+	 * the documents of more than FingerprintIndex.COMMON_FINGERPRINT_FRACTION
+	 * of a term's students are ignored.
+	 * @param fingerprints - sorted, distinct fingerprints of the document
+	 * @param threshold - smallest overlap of interest (0 to 1)
+	 * @return labels of matching archived documents and their scores
+	 */
+	public TreeMap<String, Double> findMatches(long[] fingerprints, double threshold)
+	{
+		TreeMap<String, Double> matches = new TreeMap<String, Double>();
+		if (fingerprints.length < FingerprintIndex.MIN_FINGERPRINTS)
+		{
+			return matches;
+		}
+		for (Segment s : segments)
+		{
+			s.findMatches(fingerprints, threshold, matches);
+		}
+		return matches;
+	}
+
+	/**
+	 * Add a document of the term being graded to the new segment.
+	 * @param student - name of the student
+	 * @param file - name of the file within the submission
+	 * @param fingerprints - sorted, distinct fingerprints of the document
+	 */
+	public void add(String student, String file, long[] fingerprints)
+	{
+		newLabels.add(term + ":" + student + ":" + file);
+		newFingerprints.add(fingerprints);
+		newStudents.add(student);
+	}
+
+	/**
+	 * Write the documents added for this term as the term's segment,
+	 * replacing any segment from an earlier run of the same term.
+	 * @throws IOException
+	 * @throws IllegalStateException if the archive was opened without a term
+	 */
+	public void writeSegment() throws IOException
+	{
+		if (term == null)
+		{
+			throw new IllegalStateException("No term to write to the fingerprint archive");
+		}
+		int documentCount = newLabels.size();
+		long recordCount = 0;
+		for (long[] fps : newFingerprints)
+		{
+			recordCount += fps.length;
+		}
+		/* Sort every (fingerprint, document) record by fingerprint. */
+		final long[] recordFingerprints = new long[(int) recordCount];
+		int[] recordDocuments = new int[(int) recordCount];
+		Integer[] order = new Integer[(int) recordCount];
+		int r = 0;
+		for (int d = 0; d < documentCount; d++)
+		{
+			for (long fp : newFingerprints.get(d))
+			{
+				recordFingerprints[r] = fp;
+				recordDocuments[r] = d;
+				order[r] = r;
+				r++;
+			}
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b)
+			{
+				return Long.compare(recordFingerprints[a], recordFingerprints[b]);
+			}
+		});
+
+		byte[][] labels = new byte[documentCount][];
+		long recordsOffset = HEADER_SIZE + 4L * documentCount;
+		for (int d = 0; d < documentCount; d++)
+		{
+			labels[d] = newLabels.get(d).getBytes(StandardCharsets.UTF_8);
+			recordsOffset += 4 + labels[d].length;
+		}
+
+		File segmentFile = new File(directory, segmentName());
+		File tempFile = File.createTempFile("segment", ".tmp", directory);
+		try
+		{
+			writeSegment(tempFile, recordCount, recordsOffset, labels, order, recordFingerprints, recordDocuments);
+			Files.move(tempFile.toPath(), segmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Write the contents of a segment to a file.
+	 */
+	private void writeSegment(File file, long recordCount, long recordsOffset, byte[][] labels, Integer[] order,
+			long[] recordFingerprints, int[] recordDocuments) throws IOException
+	{
+		int documentCount = labels.length;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(newStudents.size());
+			out.writeInt(documentCount);
+			out.writeLong(recordCount);
+			out.writeLong(recordsOffset);
+			for (long[] fps : newFingerprints)
+			{
+				out.writeInt(fps.length);
+			}
+			for (byte[] label : labels)
+			{
+				out.writeInt(label.length);
+				out.write(label);
+			}
+			for (Integer i : order)
+			{
+				out.writeLong(recordFingerprints[i]);
+				out.writeInt(recordDocuments[i]);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Get the file name of the segment for the term being graded.
+	 */
+	private String segmentName()
+	{
+		MessageDigest digest = CompileCache.newDigest();
+		CompileCache.update(digest, term);
+		return "term-" + CompileCache.toHex(digest) + SEGMENT_SUFFIX;
+	}
+
+	/**
+	 * A memory-mapped segment of the archive.
+	 */
+	private static class Segment {
+		private MappedByteBuffer buffer;
+		private int studentCount;
+		private int documentCount;
+		private long recordCount;
+		private int recordsOffset;
+		private int[] labelOffsets;
+
+		/**
+		 * Map a segment file and check that its header and sections fit
+		 * in the file.
+		 * @throws IOException if the file cannot be read or is not a
+		 *  complete segment
+		 */
+		Segment(File f) throws IOException
+		{
+			FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+			try
+			{
+				if (channel.size() > Integer.MAX_VALUE)
+				{
+					throw new IOException(f.getAbsolutePath() + " is too large for a fingerprint archive segment");
+				}
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			finally
+			{
+				/* The mapping stays valid after the channel is closed. */
+				channel.close();
+			}
+			long size = buffer.capacity();
+			if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			{
+				throw new IOException(f.getAbsolutePath() + " is not a fingerprint archive segment");
+			}
+			studentCount = buffer.getInt(8);
+			documentCount = buffer.getInt(12);
+			recordCount = buffer.getLong(16);
+			long recordsStart = buffer.getLong(24);
+			long offset = HEADER_SIZE + 4L * documentCount;
+			if (documentCount < 0 || recordCount < 0 || offset > size)
+			{
+				throw new IOException(f.getAbsolutePath() + " is damaged: bad header");
+			}
+			labelOffsets = new int[documentCount];
+			for (int d = 0; d < documentCount; d++)
+			{
+				if (offset + 4 > size)
+				{
+					throw new IOException(f.getAbsolutePath() + " is damaged: labels are cut short");
+				}
+				labelOffsets[d] = (int) offset;
+				int length = buffer.getInt((int) offset);
+				if (length < 0)
+				{
+					throw new IOException(f.getAbsolutePath() + " is damaged: bad label length");
+				}
+				offset += 4L + length;
+			}
+			if (offset != recordsStart || recordsStart + recordCount * RECORD_SIZE != size)
+			{
+				throw new IOException(f.getAbsolutePath() + " is damaged: records do not fit the file");
+			}
+			recordsOffset = (int) recordsStart;
+		}
+
+		/**
+		 * Add this segment's documents matching a document to matches.
+		 */
+		void findMatches(long[] fingerprints, double threshold, TreeMap<String, Double> matches)
+		{
+			int maxStudents = Math.max(2, (int) (FingerprintIndex.COMMON_FINGERPRINT_FRACTION * studentCount));
+			HashMap<Integer, Integer> shared = new HashMap<Integer, Integer>();
+			int scoring = 0;
+			for (long fp : fingerprints)
+			{
+				long first = lowerBound(fp);
+				long last = first;
+				while (last < recordCount && fingerprint(last) == fp)
+				{
+					last++;
+				}
+				/* A document holds each fingerprint once, so this counts documents. */
+				if (last - first > maxStudents)
+				{
+					continue;
+				}
+				scoring++;
+				for (long r = first; r < last; r++)
+				{
+					int d = document(r);
+					if (d < 0 || d >= documentCount)
+					{
+						/* Damaged record; the checks when opening the segment cannot see inside records. */
+						continue;
+					}
+					Integer count = shared.get(d);
+					shared.put(d, count == null ? 1 : count + 1);
+				}
+			}
+			if (scoring < FingerprintIndex.MIN_FINGERPRINTS)
+			{
+				return;
+			}
+			for (Integer d : shared.keySet())
+			{
+				double score = shared.get(d) / (double) Math.min(scoring, fingerprintCount(d));
+				if (score >= threshold)
+				{
+					matches.put(label(d), Math.min(score, 1.0));
+				}
+			}
+		}
+
+		/**
+		 * Find the first record whose fingerprint is not less than fp.
+		 */
+		private long lowerBound(long fp)
+		{
+			long low = 0;
+			long high = recordCount;
+			while (low < high)
+			{
+				long middle = (low + high) >>> 1;
+				if (fingerprint(middle) < fp)
+				{
+					low = middle + 1;
+				}
+				else
+				{
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		private long fingerprint(long record)
+		{
+			return buffer.getLong((int) (recordsOffset + record * RECORD_SIZE));
+		}
+
+		private int document(long record)
+		{
+			return buffer.getInt((int) (recordsOffset + record * RECORD_SIZE + 8));
+		}
+
+		private int fingerprintCount(int d)
+		{
+			return Math.max(1, buffer.getInt(HEADER_SIZE + 4 * d));
+		}
+
+		private String label(int d)
+		{
+			byte[] bytes = new byte[buffer.getInt(labelOffsets[d])];
+			for (int i = 0; i < bytes.length; i++)
+			{
+				bytes[i] = buffer.get(labelOffsets[d] + 4 + i);
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
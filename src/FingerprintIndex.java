@@ -0,0 +1,173 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Inverted index from winnowing fingerprints to the documents that
+ * contain them.  Pairs of documents from different owners are scored by
+ * the fraction of the smaller document's fingerprints that the other
+ * document shares.  Fingerprints found in the documents of many owners
+ * (starter code, common idioms) are ignored when scoring.
+ */
+public class FingerprintIndex {
+	/* Ignore fingerprints shared by more than this fraction of owners. */
+	public final static double COMMON_FINGERPRINT_FRACTION = 0.5;
+	/* Documents with fewer scoring fingerprints than this are not compared. */
+	public final static int MIN_FINGERPRINTS = 5;
+
+	private ArrayList<Integer> owners;
+	private ArrayList<String> names;
+	private ArrayList<long[]> fingerprints;
+	private HashMap<Long, ArrayList<Integer>> postings;
+	private int ownerCount;
+
+	/**
+	 * A pair of similar documents.
+	 */
+	public static class Match {
+		public final int owner1;
+		public final String name1;
+		public final int owner2;
+		public final String name2;
+		public final double score;
+
+		Match(int _owner1, String _name1, int _owner2, String _name2, double _score)
+		{
+			owner1 = _owner1;
+			name1 = _name1;
+			owner2 = _owner2;
+			name2 = _name2;
+			score = _score;
+		}
+	}
+
+	public FingerprintIndex()
+	{
+		owners = new ArrayList<Integer>();
+		names = new ArrayList<String>();
+		fingerprints = new ArrayList<long[]>();
+		postings = new HashMap<Long, ArrayList<Integer>>();
+	}
+
+	/**
+	 * Add a document's fingerprints to the index.
+	 * @param owner - number of the submission containing the document
+	 * @param name - name of the document within the submission
+	 * @param documentFingerprints - sorted, distinct fingerprints
+	 */
+	public void add(int owner, String name, long[] documentFingerprints)
+	{
+		int document = names.size();
+		owners.add(owner);
+		names.add(name);
+		fingerprints.add(documentFingerprints);
+		ownerCount = Math.max(ownerCount, owner + 1);
+		for (long fp : documentFingerprints)
+		{
+			ArrayList<Integer> p = postings.get(fp);
+			if (p == null)
+			{
+				p = new ArrayList<Integer>(2);
+				postings.put(fp, p);
+			}
+			p.add(document);
+		}
+	}
+
+	/**
+	 * Find the pairs of documents from different owners whose
+	 * fingerprint overlap is at least the threshold.
+	 * @param threshold - smallest overlap of interest (0 to 1)
+	 * @return similar pairs, each reported once
+	 */
+	public ArrayList<Match> findSimilarPairs(double threshold)
+	{
+		int n = names.size();
+		int maxOwners = Math.max(2, (int) (COMMON_FINGERPRINT_FRACTION * ownerCount));
+		HashSet<Long> common = findCommonFingerprints(maxOwners);
+		/* Count the fingerprints of each document that are not too common. */
+		int[] scoring = new int[n];
+		for (int d = 0; d < n; d++)
+		{
+			for (long fp : fingerprints.get(d))
+			{
+				if (!common.contains(fp))
+				{
+					scoring[d]++;
+				}
+			}
+		}
+
+		ArrayList<Match> matches = new ArrayList<Match>();
+		int[] shared = new int[n];
+		ArrayList<Integer> touched = new ArrayList<Integer>();
+		for (int d = 0; d < n; d++)
+		{
+			if (scoring[d] < MIN_FINGERPRINTS)
+			{
+				continue;
+			}
+			for (long fp : fingerprints.get(d))
+			{
+				if (common.contains(fp))
+				{
+					continue;
+				}
+				for (int other : postings.get(fp))
+				{
+					/* Count each pair once, from its lower-numbered document. */
+					if (other > d && !owners.get(other).equals(owners.get(d)))
+					{
+						if (shared[other]++ == 0)
+						{
+							touched.add(other);
+						}
+					}
+				}
+			}
+			for (int other : touched)
+			{
+				if (scoring[other] >= MIN_FINGERPRINTS)
+				{
+					double score = shared[other] / (double) Math.min(scoring[d], scoring[other]);
+					if (score >= threshold)
+					{
+						matches.add(new Match(owners.get(d), names.get(d), owners.get(other), names.get(other), Math.min(score, 1.0)));
+					}
+				}
+				shared[other] = 0;
+			}
+			touched.clear();
+		}
+		return matches;
+	}
+
+	/**
+	 * Find the fingerprints whose documents belong to too many owners
+	 * for the fingerprint to be evidence of copying.
+	 * @param maxOwners - largest number of owners for a useful fingerprint
+	 * @return common fingerprints
+	 */
+	private HashSet<Long> findCommonFingerprints(int maxOwners)
+	{
+		HashSet<Long> common = new HashSet<Long>();
+		for (Map.Entry<Long, ArrayList<Integer>> e : postings.entrySet())
+		{
+			ArrayList<Integer> p = e.getValue();
+			if (p.size() > maxOwners)
+			{
+				HashSet<Integer> distinctOwners = new HashSet<Integer>();
+				for (int d : p)
+				{
+					distinctOwners.add(owners.get(d));
+				}
+				if (distinctOwners.size() > maxOwners)
+				{
+					common.add(e.getKey());
+				}
+			}
+		}
+		return common;
+	}
+}
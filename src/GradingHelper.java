@@ -8,7 +8,14 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,6 +35,22 @@ public class GradingHelper {
 	HashMap<String,String> usersToFullName;
 	DateFormat df;
 	Date dueDate;
+	File fingerprintArchiveDirectory;
+	File cacheDirectory;
+	SimilarityClusters clusters;
+	InProcessCompiler compiler;
+	CompileCache compileCache;
+	RunCache runCache;
+	int workers;
+	int runMode;
+	boolean pipeline;
+	int pipelineOrganizeThreads;
+	int pipelineExtractThreads;
+	int pipelineCompileThreads;
+	int pipelineRunThreads;
+	int pipelineQueueSize;
+	MinHashIndex documentIndex;
+	String fingerprintArchiveTerm;
 	
 	public GradingHelper(String s) throws ParseException
 	{
@@ -38,6 +61,8 @@ public class GradingHelper {
 		usersToFullName = new HashMap<String,String>();
 		df = new SimpleDateFormat("yyyy-MM-dd HH:mm");
 		dueDate = df.parse("2100-01-01 00:00");
+		workers = 1;
+		runMode = AssignmentResults.RUN_MODE_PROCESS;
 	}
 	
 	/**
@@ -82,6 +107,9 @@ public class GradingHelper {
 	 * Examine each subdirectory of the given directory, and
 	 * find all the Java files in the directory.  Compile the
 	 * files and report whether the compilation succeeded.
+	 * With more than one worker, the students are processed in
+	 * parallel by a fixed pool of worker threads; with a pipeline
+	 * configured, they go through a staged pipeline instead.
 	 */
 	public void processDirectory() throws IOException, InterruptedException
 	{
@@ -93,29 +121,305 @@ public class GradingHelper {
 		}
 		AssignmentResults.organizeBlackBoardFiles(rootDir);
 		
+		ArrayList<File> studentDirs = new ArrayList<File>();
 		for (File e : rootDir.listFiles())
 		{
-			if (e.isDirectory())
+			/* Ignore names starting with '.', such as a cache directory. */
+			if (e.isDirectory() && !e.getName().startsWith("."))
 			{
-				AssignmentResults ar = new AssignmentResults(e.getName(), usersToFullName.get(e.getName()), e);
-				results.add(ar);
-				ar.findFiles(e);
-				ar.readOtherFilesContents();
-				ar.findSubmissionDate(dueDate);
-				ar.copyJavaFilesToUser();
-				ar.showRequestedJavaFiles(programs);
-				ar.stripPackageFromJavaFiles();
-				if (ar.checkRequiredJavaFiles(programs))
+				studentDirs.add(e);
+			}
+		}
+		buildSharedArchives();
+		if (pipeline)
+		{
+			runPipeline(studentDirs);
+		}
+		else if (workers <= 1)
+		{
+			for (File e : studentDirs)
+			{
+				results.add(processStudent(e));
+			}
+		}
+		else
+		{
+			ExecutorService pool = Executors.newFixedThreadPool(workers);
+			try
+			{
+				ArrayList<Future<AssignmentResults>> futures = new ArrayList<Future<AssignmentResults>>();
+				for (final File e : studentDirs)
 				{
-					ar.copyFilesToUser(programs, e);
-					if (ar.compileJavaFiles(programs, e))
-					{
-						ar.runJavaPrograms(programs, e);
-					}
+					futures.add(pool.submit(new Callable<AssignmentResults>() {
+						public AssignmentResults call() throws IOException, InterruptedException
+						{
+							return processStudent(e);
+						}
+					}));
+				}
+				for (Future<AssignmentResults> f : futures)
+				{
+					results.add(getResult(f));
 				}
 			}
+			finally
+			{
+				pool.shutdownNow();
+			}
 		}
 		Collections.sort(results);
+		if (compileCache != null)
+		{
+			System.out.println("Compile cache: " + compileCache);
+		}
+		if (runCache != null)
+		{
+			System.out.println("Run cache: " + runCache);
+		}
+		if (compiler != null)
+		{
+			/* Release the classpath jars held open by the compiling threads. */
+			compiler.close();
+		}
+	}
+
+	/**
+	 * Build a shared class archive for the programs whose launch element
+	 * asks for one, once for each set of shared jars, so the JVMs that run
+	 * students' programs start faster.  Archives are kept in the cache
+	 * directory if there is one, where later grading runs reuse them, and
+	 * written to temporary files otherwise.
+	 */
+	private void buildSharedArchives() throws IOException, InterruptedException
+	{
+		if (runMode == AssignmentResults.RUN_MODE_WORKER)
+		{
+			/* Worker JVMs are started once per student, without launch options. */
+			return;
+		}
+		HashMap<String, File> archives = new HashMap<String, File>();
+		for (ProgramInfo pi : programs)
+		{
+			if (!pi.usesSharedArchive() || pi.getSecurityPolicyFile() != null)
+			{
+				continue;
+			}
+			String jars = SharedArchive.archiveClasspath(pi.getClasspath());
+			if (!archives.containsKey(jars))
+			{
+				File archive;
+				if (cacheDirectory != null)
+				{
+					cacheDirectory.mkdirs();
+					archive = SharedArchive.archiveFile(cacheDirectory, jars);
+				}
+				else
+				{
+					archive = File.createTempFile("classes", ".jsa");
+					archive.deleteOnExit();
+				}
+				if (cacheDirectory != null && archive.isFile())
+				{
+					System.out.println("Using shared class archive " + archive);
+					archives.put(jars, archive);
+				}
+				else
+				{
+					System.out.println("Building shared class archive " + archive);
+					archives.put(jars, SharedArchive.build(archive, jars) ? archive : null);
+				}
+			}
+			pi.setSharedArchive(archives.get(jars));
+		}
+	}
+
+	/**
+	 * Find, compile and run the files of one student's submission.
+	 * @param e - student's directory
+	 * @return results for the student
+	 */
+	private AssignmentResults processStudent(File e) throws IOException, InterruptedException
+	{
+		AssignmentResults ar = organizeStudent(e);
+		ar.readOtherFilesContents();
+		if (compileStudent(ar))
+		{
+			ar.runJavaPrograms(programs, ar.getDirectory(), runMode, runCache);
+		}
+		return ar;
+	}
+
+	/**
+	 * Find the files of a student's submission and collect the Java
+	 * files in the student's directory.
+	 * @param e - student's directory
+	 * @return results for the student
+	 */
+	private AssignmentResults organizeStudent(File e) throws IOException
+	{
+		AssignmentResults ar = new AssignmentResults(e.getName(), usersToFullName.get(e.getName()), e);
+		ar.findFiles(e);
+		ar.findSubmissionDate(dueDate);
+		ar.copyJavaFilesToUser();
+		ar.showRequestedJavaFiles(programs);
+		ar.stripPackageFromJavaFiles();
+		return ar;
+	}
+
+	/**
+	 * Fingerprint and compile a student's Java files.
+	 * @param ar - results for the student
+	 * @return true if the programs should be run
+	 */
+	private boolean compileStudent(AssignmentResults ar) throws IOException, InterruptedException
+	{
+		ar.fingerprintJavaFiles();
+		if (ar.checkRequiredJavaFiles(programs))
+		{
+			ar.copyFilesToUser(programs, ar.getDirectory());
+			return ar.compileJavaFiles(programs, ar.getDirectory(), compiler, compileCache);
+		}
+		return false;
+	}
+
+	/**
+	 * Process the students in a staged pipeline.  The organize stage
+	 * feeds both the extract stage (text of other documents, followed by
+	 * the similarity stage, which adds the documents to the MinHash index)
+	 * and the compile stage (followed by the run stage), so a slow
+	 * document does not hold up compiling and running programs.  Each
+	 * stage has its own threads, and the stages are joined by bounded
+	 * queues.  The similarity stage has one thread, as the index is not
+	 * safe for use by several threads.
+	 * @param studentDirs - students' directories
+	 */
+	private void runPipeline(ArrayList<File> studentDirs) throws IOException, InterruptedException
+	{
+		documentIndex = new MinHashIndex();
+		final PipelineStage<AssignmentResults> similarity = new PipelineStage<AssignmentResults>("similarity", 1, pipelineQueueSize,
+				new PipelineStage.Handler<AssignmentResults>() {
+					public void process(AssignmentResults ar)
+					{
+						ar.addDocumentsTo(documentIndex);
+					}
+				});
+		final PipelineStage<AssignmentResults> extract = new PipelineStage<AssignmentResults>("extract", pipelineExtractThreads, pipelineQueueSize,
+				new PipelineStage.Handler<AssignmentResults>() {
+					public void process(AssignmentResults ar) throws InterruptedException
+					{
+						ar.readOtherFilesContents();
+						similarity.put(ar);
+					}
+				});
+		final PipelineStage<AssignmentResults> run = new PipelineStage<AssignmentResults>("run", pipelineRunThreads, pipelineQueueSize,
+				new PipelineStage.Handler<AssignmentResults>() {
+					public void process(AssignmentResults ar) throws IOException, InterruptedException
+					{
+						ar.runJavaPrograms(programs, ar.getDirectory(), runMode, runCache);
+					}
+				});
+		final PipelineStage<AssignmentResults> compile = new PipelineStage<AssignmentResults>("compile", pipelineCompileThreads, pipelineQueueSize,
+				new PipelineStage.Handler<AssignmentResults>() {
+					public void process(AssignmentResults ar) throws IOException, InterruptedException
+					{
+						if (compileStudent(ar))
+						{
+							run.put(ar);
+						}
+					}
+				});
+		final ArrayList<AssignmentResults> organized = new ArrayList<AssignmentResults>();
+		PipelineStage<File> organize = new PipelineStage<File>("organize", pipelineOrganizeThreads, pipelineQueueSize,
+				new PipelineStage.Handler<File>() {
+					public void process(File e) throws IOException, InterruptedException
+					{
+						AssignmentResults ar = organizeStudent(e);
+						synchronized (organized)
+						{
+							organized.add(ar);
+						}
+						extract.put(ar);
+						compile.put(ar);
+					}
+				});
+		extract.addNextStage(similarity);
+		compile.addNextStage(run);
+
+		ArrayList<PipelineStage<AssignmentResults>> stages = new ArrayList<PipelineStage<AssignmentResults>>();
+		stages.add(extract);
+		stages.add(similarity);
+		stages.add(compile);
+		stages.add(run);
+		for (PipelineStage<AssignmentResults> stage : stages)
+		{
+			stage.start();
+		}
+		organize.start();
+		for (File e : studentDirs)
+		{
+			organize.put(e);
+		}
+		organize.close();
+		organize.join();
+		/* The organize stage has different items, so it closes its next stages here. */
+		extract.close();
+		compile.close();
+		Throwable failure = organize.getFailure();
+		for (PipelineStage<AssignmentResults> stage : stages)
+		{
+			stage.join();
+			if (failure == null)
+			{
+				failure = stage.getFailure();
+			}
+		}
+		results.addAll(organized);
+		if (failure != null)
+		{
+			throw rethrow(failure);
+		}
+	}
+
+	/**
+	 * Wait for a worker's result, rethrowing the worker's exception.
+	 */
+	private static <T> T getResult(Future<T> f) throws IOException, InterruptedException
+	{
+		try
+		{
+			return f.get();
+		}
+		catch (ExecutionException ee)
+		{
+			throw rethrow(ee.getCause());
+		}
+	}
+
+	/**
+	 * Rethrow the exception of a worker or pipeline stage: unchecked
+	 * exceptions and InterruptedException are thrown as they are, and an
+	 * IOException is returned for the caller to throw, wrapping checked
+	 * exceptions of other types.
+	 */
+	private static IOException rethrow(Throwable cause) throws InterruptedException
+	{
+		if (cause instanceof IOException)
+		{
+			return (IOException) cause;
+		}
+		if (cause instanceof InterruptedException)
+		{
+			throw (InterruptedException) cause;
+		}
+		if (cause instanceof RuntimeException)
+		{
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error)
+		{
+			throw (Error) cause;
+		}
+		return new IOException(cause);
 	}
 	
 	/**
@@ -123,6 +427,22 @@ public class GradingHelper {
 	 * Properties:
 	 *   grading.programs: list of programs expected
 	 *   grading.javaFiles: comma-separated list of input files for each program
+	 *   compiler: "inProcess" to compile in this JVM instead of running javac
+	 *   runMode: "process" (default) to run each program in a new JVM,
+	 *     "worker" to run each student's programs in one reused JVM, or
+	 *     "redirect" to run each program in a new JVM with its input and
+	 *     output redirected to files
+	 *   workers: number of students to process in parallel, or "auto" for
+	 *     one per processor (default 1)
+	 *   pipeline: run the students through a staged pipeline, with optional
+	 *     organize, extract, compile and run attributes giving the number of
+	 *     threads in each stage, and queueSize giving the queue length
+	 *   cacheDirectory: optional directory for results saved between runs
+	 *     (similarity scores, compiled classes and program runs; runs="no"
+	 *     runs every program again)
+	 *   fingerprintArchive: optional directory of fingerprints from earlier terms,
+	 *     with a term attribute naming this term; without one, submissions
+	 *     are checked against the archive but not added to it
 	 * @param dir - Directory expected to contain the config file
 	 * @throws IOException
 	 * @throws ParseException 
@@ -147,6 +467,79 @@ public class GradingHelper {
 			dueDate = df.parse(n.getTextContent());
 		}
 
+		n = (Node)xpath.evaluate("/homework/compiler", doc, XPathConstants.NODE);
+		if (n != null && n.getTextContent().trim().equalsIgnoreCase("inProcess"))
+		{
+			try
+			{
+				compiler = new InProcessCompiler();
+			}
+			catch (IllegalStateException e)
+			{
+				System.out.println("Warning: " + e.getMessage() + "; compiling with javac processes");
+			}
+		}
+
+		n = (Node)xpath.evaluate("/homework/runMode", doc, XPathConstants.NODE);
+		if (n != null)
+		{
+			String mode = n.getTextContent().trim();
+			if (mode.equalsIgnoreCase("worker"))
+			{
+				runMode = AssignmentResults.RUN_MODE_WORKER;
+			}
+			else if (mode.equalsIgnoreCase("redirect"))
+			{
+				runMode = AssignmentResults.RUN_MODE_REDIRECT;
+			}
+			else if (!mode.equalsIgnoreCase("process"))
+			{
+				System.out.println("Warning: Unknown runMode " + mode + "; running programs as processes");
+			}
+		}
+
+		n = (Node)xpath.evaluate("/homework/workers", doc, XPathConstants.NODE);
+		if (n != null)
+		{
+			String w = n.getTextContent().trim();
+			workers = w.equalsIgnoreCase("auto") ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(w);
+		}
+
+		n = (Node)xpath.evaluate("/homework/pipeline", doc, XPathConstants.NODE);
+		if (n != null)
+		{
+			int processors = Runtime.getRuntime().availableProcessors();
+			pipeline = true;
+			pipelineOrganizeThreads = getIntAttribute(n, "organize", 2);
+			pipelineExtractThreads = getIntAttribute(n, "extract", 2);
+			pipelineCompileThreads = getIntAttribute(n, "compile", processors);
+			pipelineRunThreads = getIntAttribute(n, "run", processors);
+			pipelineQueueSize = getIntAttribute(n, "queueSize", 16);
+		}
+
+		n = (Node)xpath.evaluate("/homework/cacheDirectory", doc, XPathConstants.NODE);
+		if (n != null)
+		{
+			cacheDirectory = new File(n.getTextContent());
+			compileCache = new CompileCache(new File(cacheDirectory, "compile"));
+			Node runsAttribute = n.getAttributes().getNamedItem("runs");
+			if (runsAttribute == null || !runsAttribute.getTextContent().trim().equalsIgnoreCase("no"))
+			{
+				runCache = new RunCache(new File(cacheDirectory, "run"));
+			}
+		}
+
+		n = (Node)xpath.evaluate("/homework/fingerprintArchive", doc, XPathConstants.NODE);
+		if (n != null)
+		{
+			fingerprintArchiveDirectory = new File(n.getTextContent());
+			Node termAttribute = n.getAttributes().getNamedItem("term");
+			if (termAttribute != null)
+			{
+				fingerprintArchiveTerm = termAttribute.getTextContent();
+			}
+		}
+
 		NodeList nl = (NodeList)xpath.evaluate("/homework/program", doc, XPathConstants.NODESET);
 		programs = new ProgramInfo[nl.getLength()];
 		for (int i = 0; i < nl.getLength(); i++)
@@ -155,6 +548,23 @@ public class GradingHelper {
 		}
 	}
 	
+	/**
+	 * Get an integer attribute of a configuration element.
+	 * @param n - element
+	 * @param name - attribute name
+	 * @param defaultValue - value if the attribute is missing
+	 * @return attribute value
+	 */
+	private static int getIntAttribute(Node n, String name, int defaultValue)
+	{
+		Node attribute = n.getAttributes().getNamedItem(name);
+		if (attribute == null)
+		{
+			return defaultValue;
+		}
+		return Integer.parseInt(attribute.getTextContent().trim());
+	}
+	
 	/**
 	 * Create a file in the given root directory to hold the
 	 * report for the student submissions.
@@ -187,10 +597,16 @@ public class GradingHelper {
 	}
 	
 	/**
-	 * Generate the report of the student's submissions.
+	 * Generate the report of the student's submissions, starting
+	 * with the groups of similar submissions.
 	 */
 	public void reportResults()
 	{
+		if (clusters != null)
+		{
+			reportFileWriter.println(clusters.toString());
+			reportFileWriter.print('\f');
+		}
 		for (AssignmentResults ar : results)
 		{
 			reportFileWriter.println(ar.toString());
@@ -201,14 +617,125 @@ public class GradingHelper {
 
 	/**
 	 * Determine the closest matches between submissions.
+	 * A MinHash index over all submitted documents picks the candidate
+	 * pairs, and each candidate pair gets one exact similarity check
+	 * in a SimilarityMatrix computed on all processors.  Scores are
+	 * saved in the cache directory, if any, for reuse by later runs.
+	 * Java files are compared by their winnowing fingerprints.
+	 * The similar pairs are grouped into clusters of submissions.
+	 */
+	public void findClosestMatches() throws IOException
+	{
+		clusters = new SimilarityClusters(results);
+		MinHashIndex index = documentIndex;
+		if (index == null)
+		{
+			index = new MinHashIndex();
+			for (AssignmentResults ar : results)
+			{
+				ar.addDocumentsTo(index);
+			}
+		}
+		System.out.println("Found " + index.getCandidatePairCount() + " candidate pairs of similar documents");
+		SimilarityMatrix matrix = new SimilarityMatrix(results, AssignmentResults.SUBMISSION_SIMILARITY_THRESHOLD, index);
+		System.out.println("Checking closest matches among " + matrix.size() + " submitted documents");
+		SimilarityCache cache = null;
+		if (cacheDirectory != null)
+		{
+			cache = new SimilarityCache(new File(cacheDirectory, "similarity.cache"), AssignmentResults.SUBMISSION_SIMILARITY_THRESHOLD);
+			matrix.setCache(cache);
+		}
+		matrix.compute();
+		if (cache != null)
+		{
+			cache.save();
+			System.out.println("Similarity cache: " + cache);
+		}
+		System.out.println("Similarity filters: " + matrix.getFilter());
+		matrix.addEdgesTo(clusters);
+		findSimilarJavaFiles();
+		clusters.fillSubmissions();
+		System.out.println("Found " + clusters.getClusterCount() + " groups of similar submissions");
+	}
+
+	/**
+	 * Find Java files that share a large fraction of their fingerprints
+	 * with Java files in other submissions, and add them to the clusters.
+	 */
+	public void findSimilarJavaFiles()
+	{
+		FingerprintIndex index = new FingerprintIndex();
+		for (int i = 0; i < results.size(); i++)
+		{
+			for (Map.Entry<String, long[]> jf : results.get(i).getJavaFilesFingerprints().entrySet())
+			{
+				index.add(i, jf.getKey(), jf.getValue());
+			}
+		}
+		ArrayList<FingerprintIndex.Match> matches = index.findSimilarPairs(AssignmentResults.SOURCE_SIMILARITY_THRESHOLD);
+		System.out.println("Found " + matches.size() + " pairs of similar Java files");
+		for (FingerprintIndex.Match m : matches)
+		{
+			clusters.addEdge(m.owner1, m.name1, m.owner2, m.name2, m.score, true);
+		}
+	}
+
+	/**
+	 * Check the submitted Java files and documents against the fingerprint
+	 * archive of earlier terms, if one is configured, and then add this
+	 * term's fingerprints to the archive.  Problems with the archive are
+	 * reported as warnings, so they do not stop the grading report.
+	 */
+	public void checkFingerprintArchive()
+	{
+		if (fingerprintArchiveDirectory == null)
+		{
+			return;
+		}
+		try
+		{
+			checkFingerprintArchive(fingerprintArchiveDirectory);
+		}
+		catch (IOException e)
+		{
+			System.out.println("Warning: Could not use fingerprint archive " + fingerprintArchiveDirectory + ": " + e);
+		}
+		catch (RuntimeException e)
+		{
+			System.out.println("Warning: Could not use fingerprint archive " + fingerprintArchiveDirectory + ": " + e);
+		}
+	}
+
+	/**
+	 * Check the submissions against the archive in a directory, and add
+	 * this term's fingerprints to it.
 	 */
-	public void findClosestMatches()
+	private void checkFingerprintArchive(File directory) throws IOException
 	{
+		FingerprintArchive archive = new FingerprintArchive(directory, fingerprintArchiveTerm);
+		System.out.println("Checking submissions against " + archive.getDocumentCount() + " archived files");
 		for (AssignmentResults ar : results)
 		{
-			System.out.println("Checking closest matches for submission for " + ar.getName());
-			ar.findClosestMatchesInAllSubmissions(results);
+			TreeMap<String, long[]> files = ar.getJavaFilesFingerprints();
+			for (Map.Entry<String, NormalizedDocument> doc : ar.getComparableDocuments().entrySet())
+			{
+				files.put(doc.getKey(), Winnowing.fingerprintText(doc.getValue()));
+			}
+			for (Map.Entry<String, long[]> f : files.entrySet())
+			{
+				ar.addArchivedSimilarFiles(f.getKey(), archive.findMatches(f.getValue(), FingerprintArchive.ARCHIVE_SIMILARITY_THRESHOLD));
+				if (fingerprintArchiveTerm != null)
+				{
+					archive.add(ar.getName(), f.getKey(), f.getValue());
+				}
+			}
+		}
+		if (fingerprintArchiveTerm == null)
+		{
+			System.out.println("Not adding this term to the fingerprint archive: no term attribute is set");
+			return;
 		}
+		archive.writeSegment();
 	}
 
 	/**
@@ -228,6 +755,7 @@ public class GradingHelper {
 			gh.openReportFile();
 			gh.processDirectory();
 			gh.findClosestMatches();
+			gh.checkFingerprintArchive();
 			gh.reportResults();
 			gh.closeReportFile();
 		}
@@ -0,0 +1,184 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Compile students' Java files inside the grading JVM with the system
+ * Java compiler, instead of starting a javac process for each student.
+ * Each thread compiling has its own StandardJavaFileManager, reused for
+ * all of that thread's compilations, so the classpath jars stay open and
+ * the compiler stays warm while students are compiled in parallel.  The
+ * file managers are closed, releasing the jars, by close().  The
+ * compiler messages are collected and formatted the way the javac
+ * command prints them.
+ */
+public class InProcessCompiler implements Closeable {
+	private JavaCompiler compiler;
+	private ThreadLocal<StandardJavaFileManager> fileManagers;
+	private ArrayList<StandardJavaFileManager> openFileManagers;
+
+	/**
+	 * Result of compiling one student's files.
+	 */
+	public static class Result {
+		public final boolean success;
+		public final String output;
+
+		Result(boolean _success, String _output)
+		{
+			success = _success;
+			output = _output;
+		}
+	}
+
+	/**
+	 * Get the system Java compiler.
+	 * @throws IllegalStateException if the JVM has no system compiler
+	 *  (for example, a JRE without the jdk.compiler module)
+	 */
+	public InProcessCompiler()
+	{
+		compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null)
+		{
+			throw new IllegalStateException("No system Java compiler is available");
+		}
+		openFileManagers = new ArrayList<StandardJavaFileManager>();
+		fileManagers = new ThreadLocal<StandardJavaFileManager>() {
+			protected StandardJavaFileManager initialValue()
+			{
+				StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, Locale.getDefault(), null);
+				synchronized (openFileManagers)
+				{
+					openFileManagers.add(fileManager);
+				}
+				return fileManager;
+			}
+		};
+	}
+
+	/**
+	 * Compile Java files in a directory, placing the class files in the
+	 * same directory, as the javac command run in that directory would.
+	 * Several threads may compile at once, in different directories.
+	 * @param dir - working directory containing the Java files
+	 * @param javaFiles - names of the Java files, relative to dir
+	 * @param classpath - classpath setting (entries relative to dir), or null
+	 * @return whether compilation succeeded, and the compiler messages
+	 * @throws IOException
+	 */
+	public Result compile(File dir, List<String> javaFiles, String classpath) throws IOException
+	{
+		StandardJavaFileManager fileManager = fileManagers.get();
+		ArrayList<File> sources = new ArrayList<File>();
+		for (String jf : javaFiles)
+		{
+			sources.add(new File(dir, jf));
+		}
+		fileManager.setLocation(StandardLocation.CLASS_PATH, resolveClasspath(dir, classpath));
+		fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(dir));
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(sources);
+		boolean success = compiler.getTask(null, fileManager, diagnostics, null, null, units).call();
+		fileManager.flush();
+
+		StringBuffer output = new StringBuffer();
+		String dirPrefix = dir.getAbsolutePath() + File.separator;
+		int errors = 0;
+		int warnings = 0;
+		for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics())
+		{
+			if (d.getKind() == Diagnostic.Kind.ERROR)
+			{
+				errors++;
+			}
+			else if (d.getKind() == Diagnostic.Kind.WARNING || d.getKind() == Diagnostic.Kind.MANDATORY_WARNING)
+			{
+				warnings++;
+			}
+			output.append(d.toString().replace(dirPrefix, ""));
+			output.append('\n');
+		}
+		if (errors > 0)
+		{
+			output.append(errors + (errors == 1 ? " error\n" : " errors\n"));
+		}
+		if (warnings > 0)
+		{
+			output.append(warnings + (warnings == 1 ? " warning\n" : " warnings\n"));
+		}
+		return new Result(success, output.toString());
+	}
+
+	/**
+	 * Close the file managers of every thread that compiled.  Call when
+	 * all compilations are done; the compiler is not used afterwards.
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		ArrayList<StandardJavaFileManager> toClose;
+		synchronized (openFileManagers)
+		{
+			toClose = new ArrayList<StandardJavaFileManager>(openFileManagers);
+			openFileManagers.clear();
+		}
+		IOException failure = null;
+		for (StandardJavaFileManager fileManager : toClose)
+		{
+			try
+			{
+				fileManager.close();
+			}
+			catch (IOException e)
+			{
+				failure = e;
+			}
+		}
+		if (failure != null)
+		{
+			throw failure;
+		}
+	}
+
+	/**
+	 * Turn a classpath setting into files, resolving relative entries
+	 * against the working directory.  With no setting, the classpath is
+	 * the working directory, as for the javac command.
+	 */
+	static List<File> resolveClasspath(File dir, String classpath)
+	{
+		ArrayList<File> entries = new ArrayList<File>();
+		if (classpath == null)
+		{
+			entries.add(dir);
+			return entries;
+		}
+		for (String entry : classpath.split(File.pathSeparator))
+		{
+			if (entry.length() == 0)
+			{
+				continue;
+			}
+			File f = new File(entry);
+			if (!f.isAbsolute())
+			{
+				f = new File(dir, entry);
+			}
+			entries.add(f);
+		}
+		return entries;
+	}
+}
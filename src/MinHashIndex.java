@@ -0,0 +1,213 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Locality-sensitive hashing index over character shingles of documents.
+ * Each document gets a MinHash signature, the signature is cut into
+ * bands, and two documents become a candidate pair when any band of
+ * their signatures hashes to the same bucket.  Documents that share
+ * many shingles (and so could have a small edit distance) almost always
+ * share a bucket, while unrelated documents rarely do, so only the
+ * candidate pairs need an exact StringSimilarity check.
+ */
+public class MinHashIndex {
+	public final static int DEFAULT_SHINGLE_SIZE = 5;
+	public final static int DEFAULT_BANDS = 40;
+	public final static int DEFAULT_ROWS = 3;
+	private final static long SEED = 0x5EEDL;
+
+	private int shingleSize;
+	private int bands;
+	private int rows;
+	private long[] hashSeeds;
+	private ArrayList<HashMap<Long, ArrayList<String>>> buckets;
+	private HashMap<String, Set<String>> candidates;
+	private long candidatePairs;
+
+	/**
+	 * Create an index with the default shingle size and banding.
+	 */
+	public MinHashIndex()
+	{
+		this(DEFAULT_SHINGLE_SIZE, DEFAULT_BANDS, DEFAULT_ROWS);
+	}
+
+	/**
+	 * Create an index.
+	 * @param _shingleSize - number of characters in each shingle
+	 * @param _bands - number of bands in each signature
+	 * @param _rows - number of MinHash values in each band
+	 */
+	public MinHashIndex(int _shingleSize, int _bands, int _rows)
+	{
+		shingleSize = _shingleSize;
+		bands = _bands;
+		rows = _rows;
+		hashSeeds = new long[bands * rows];
+		Random random = new Random(SEED);
+		for (int i = 0; i < hashSeeds.length; i++)
+		{
+			hashSeeds[i] = random.nextLong();
+		}
+		buckets = new ArrayList<HashMap<Long, ArrayList<String>>>();
+		for (int b = 0; b < bands; b++)
+		{
+			buckets.add(new HashMap<Long, ArrayList<String>>());
+		}
+		candidates = new HashMap<String, Set<String>>();
+	}
+
+	/**
+	 * Add a document to the index.  Whitespace, punctuation and case
+	 * are ignored, as in StringSimilarity.similarity.
+	 * @param key - unique name of the document
+	 * @param text - contents of the document
+	 */
+	public void add(String key, String text)
+	{
+		add(key, new NormalizedDocument(text));
+	}
+
+	/**
+	 * Add a normalized document to the index.
+	 * @param key - unique name of the document
+	 * @param document - normalized document
+	 */
+	public void add(String key, NormalizedDocument document)
+	{
+		long[] signature = signature(document.getChars());
+		for (int b = 0; b < bands; b++)
+		{
+			long bandHash = b;
+			for (int r = 0; r < rows; r++)
+			{
+				bandHash = mix(bandHash * 31 + signature[b * rows + r]);
+			}
+			ArrayList<String> bucket = buckets.get(b).get(bandHash);
+			if (bucket == null)
+			{
+				bucket = new ArrayList<String>();
+				buckets.get(b).put(bandHash, bucket);
+			}
+			for (String other : bucket)
+			{
+				addCandidate(key, other);
+			}
+			bucket.add(key);
+		}
+	}
+
+	/**
+	 * Determine whether two documents share at least one bucket.
+	 * @param key1 - name of one document
+	 * @param key2 - name of another document
+	 * @return true if the documents should be compared
+	 */
+	public boolean isCandidate(String key1, String key2)
+	{
+		Set<String> c = candidates.get(key1);
+		return c != null && c.contains(key2);
+	}
+
+	/**
+	 * Get the documents that share at least one bucket with a document.
+	 * @param key - name of the document
+	 * @return names of the candidate documents
+	 */
+	public Set<String> getCandidates(String key)
+	{
+		Set<String> c = candidates.get(key);
+		if (c == null)
+		{
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(c);
+	}
+
+	/**
+	 * Get the number of distinct candidate pairs found so far.
+	 * @return number of candidate pairs
+	 */
+	public long getCandidatePairCount()
+	{
+		return candidatePairs;
+	}
+
+	/**
+	 * Record a candidate pair in both directions.
+	 */
+	private void addCandidate(String key1, String key2)
+	{
+		if (key1.equals(key2))
+		{
+			return;
+		}
+		Set<String> c1 = candidates.get(key1);
+		if (c1 == null)
+		{
+			c1 = new HashSet<String>();
+			candidates.put(key1, c1);
+		}
+		if (c1.add(key2))
+		{
+			Set<String> c2 = candidates.get(key2);
+			if (c2 == null)
+			{
+				c2 = new HashSet<String>();
+				candidates.put(key2, c2);
+			}
+			c2.add(key1);
+			candidatePairs++;
+		}
+	}
+
+	/**
+	 * Compute the MinHash signature of the shingles of a document.
+	 * A document shorter than one shingle is treated as a single shingle.
+	 * @param text - normalized characters of the document
+	 * @return signature with bands * rows values
+	 */
+	private long[] signature(char[] text)
+	{
+		long[] signature = new long[hashSeeds.length];
+		for (int i = 0; i < signature.length; i++)
+		{
+			signature[i] = Long.MAX_VALUE;
+		}
+		int shingles = Math.max(1, text.length - shingleSize + 1);
+		for (int start = 0; start < shingles; start++)
+		{
+			long shingleHash = 0;
+			int end = Math.min(text.length, start + shingleSize);
+			for (int i = start; i < end; i++)
+			{
+				shingleHash = shingleHash * 65599 + text[i];
+			}
+			shingleHash = mix(shingleHash);
+			for (int i = 0; i < hashSeeds.length; i++)
+			{
+				long h = (shingleHash ^ hashSeeds[i]) * 0x9E3779B97F4A7C15L;
+				h ^= h >>> 32;
+				if (h < signature[i])
+				{
+					signature[i] = h;
+				}
+			}
+		}
+		return signature;
+	}
+
+	/**
+	 * Scramble the bits of a 64-bit value (SplitMix64 finalizer).
+	 */
+	static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
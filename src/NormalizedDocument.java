@@ -0,0 +1,141 @@
+import java.util.Arrays;
+
+/**
+ * The text of a submitted document prepared for similarity checks:
+ * whitespace and punctuation are removed and letters are converted to
+ * lower case, as StringSimilarity.similarity expects.  The document is
+ * normalized once when it is read, and the character array, length and
+ * hash are shared by every comparison it takes part in.
+ */
+public class NormalizedDocument {
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	public final static int QGRAM_SIZE = 3;
+
+	private char[] chars;
+	private long hash;
+	private volatile long[] qgrams;
+
+	/**
+	 * Normalize the text of a document.
+	 * @param text - document text
+	 */
+	public NormalizedDocument(String text)
+	{
+		chars = normalize(text);
+		hash = FNV_OFFSET_BASIS;
+		for (char c : chars)
+		{
+			hash = (hash ^ c) * FNV_PRIME;
+		}
+	}
+
+	/**
+	 * Remove whitespace and punctuation (\p{Space} and \p{Punct}) from a
+	 * string and convert it to lower case.
+	 * @param text - string
+	 * @return normalized characters
+	 */
+	static char[] normalize(String text)
+	{
+		char[] result = new char[text.length()];
+		int length = 0;
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if (!isSpaceOrPunctuation(c))
+			{
+				result[length++] = Character.toLowerCase(c);
+			}
+		}
+		return length == result.length ? result : Arrays.copyOf(result, length);
+	}
+
+	/**
+	 * Determine whether a character is ASCII whitespace or punctuation.
+	 */
+	private static boolean isSpaceOrPunctuation(char c)
+	{
+		if (c == ' ' || (c >= '\t' && c <= '\r'))
+		{
+			return true;
+		}
+		return (c >= '!' && c <= '/') || (c >= ':' && c <= '@') ||
+				(c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+	}
+
+	/**
+	 * Get the normalized characters.  The array is shared and must not
+	 * be modified.
+	 * @return normalized characters
+	 */
+	public char[] getChars()
+	{
+		return chars;
+	}
+
+	/**
+	 * Get the number of normalized characters.
+	 * @return length
+	 */
+	public int length()
+	{
+		return chars.length;
+	}
+
+	/**
+	 * Get the 64-bit hash of the normalized characters.
+	 * @return hash
+	 */
+	public long getHash()
+	{
+		return hash;
+	}
+
+	/**
+	 * Get the q-grams (runs of QGRAM_SIZE characters) of the document,
+	 * each packed exactly into a long, in sorted order with repeats.
+	 * Computed on first use.
+	 * @return sorted q-grams
+	 */
+	public long[] getQGrams()
+	{
+		long[] q = qgrams;
+		if (q == null)
+		{
+			q = new long[Math.max(0, chars.length - QGRAM_SIZE + 1)];
+			for (int i = 0; i < q.length; i++)
+			{
+				long packed = 0;
+				for (int j = 0; j < QGRAM_SIZE; j++)
+				{
+					packed = (packed << 16) | chars[i + j];
+				}
+				q[i] = packed;
+			}
+			Arrays.sort(q);
+			qgrams = q;
+		}
+		return q;
+	}
+
+	public int hashCode()
+	{
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	public boolean equals(Object o)
+	{
+		if (this == o)
+		{
+			return true;
+		}
+		if (!(o instanceof NormalizedDocument))
+		{
+			return false;
+		}
+		NormalizedDocument other = (NormalizedDocument) o;
+		return hash == other.hash && Arrays.equals(chars, other.chars);
+	}
+}
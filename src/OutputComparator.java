@@ -0,0 +1,363 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Output stream that compares a program's output, line by line as it is
+ * written, with the lines of an expected output file, and passes the
+ * output on to another stream.  Only the current line of output and a
+ * bounded list of differences are kept.  Lines may be compared exactly
+ * or after normalization: trimming spaces, ignoring case, ignoring how
+ * much whitespace separates words, or comparing numbers within a
+ * tolerance.  Once stopAfter lines differ, if set, the mismatch listener
+ * is called once, so a hopeless run can be stopped early.
+ * Safe for use by several threads at once.
+ */
+public class OutputComparator extends FilterOutputStream {
+	public final static int COMPARE_EXACT = 0;
+	public final static int COMPARE_TRIM = 1;
+	public final static int COMPARE_IGNORE_CASE = 2;
+	public final static int COMPARE_IGNORE_WHITESPACE = 4;
+	public final static double NO_TOLERANCE = -1;
+	public final static int MAX_DIFF_LINES = 20;
+	public final static int MAX_LINE_LENGTH = 65536;
+	public final static int MAX_SHOWN_LENGTH = 200;
+
+	private BufferedReader expected;
+	private int flags;
+	private double tolerance;
+	private int stopAfter;
+	private byte[] line;
+	private int lineLength;
+	private boolean lineTooLong;
+	private int lineNumber;
+	private int mismatches;
+	private ArrayList<String> diff;
+	private Runnable mismatchListener;
+	private boolean stopped;
+	private boolean finished;
+
+	/**
+	 * Create a comparator.
+	 * @param _out - stream receiving the output, after it is compared
+	 * @param expectedFile - file containing the expected output
+	 * @param _flags - sum of the COMPARE_ flags
+	 * @param _tolerance - largest difference allowed between numbers,
+	 *  relative to numbers larger than 1, or NO_TOLERANCE to compare
+	 *  numbers as text
+	 * @param _stopAfter - number of differing lines after which the
+	 *  mismatch listener is called, or 0 for no limit
+	 * @throws FileNotFoundException
+	 */
+	public OutputComparator(OutputStream _out, File expectedFile, int _flags, double _tolerance, int _stopAfter) throws FileNotFoundException
+	{
+		super(_out);
+		expected = new BufferedReader(new FileReader(expectedFile));
+		flags = _flags;
+		tolerance = _tolerance;
+		stopAfter = _stopAfter;
+		line = new byte[1024];
+		diff = new ArrayList<String>();
+	}
+
+	/**
+	 * Set the action taken when stopAfter lines differ, such as stopping
+	 * the program.  If that many lines already differ, the action is
+	 * taken now.
+	 * @param listener - action to take
+	 */
+	public void setMismatchListener(Runnable listener)
+	{
+		boolean reached;
+		synchronized (this)
+		{
+			mismatchListener = listener;
+			reached = stopped;
+		}
+		if (reached)
+		{
+			listener.run();
+		}
+	}
+
+	public void write(int b) throws IOException
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		out.write(b, off, len);
+		Runnable listener = null;
+		synchronized (this)
+		{
+			for (int i = off; i < off + len; i++)
+			{
+				if (b[i] == '\n')
+				{
+					if (compareLine(takeLine()))
+					{
+						listener = mismatchListener;
+					}
+				}
+				else
+				{
+					appendToLine(b[i]);
+				}
+			}
+		}
+		if (listener != null)
+		{
+			listener.run();
+		}
+	}
+
+	/**
+	 * Compare the rest of the output, when the program has finished:
+	 * an unfinished last line, and expected lines that were not written.
+	 * @throws IOException
+	 */
+	public synchronized void finish() throws IOException
+	{
+		if (finished)
+		{
+			return;
+		}
+		if (lineLength > 0 || lineTooLong)
+		{
+			compareLine(takeLine());
+		}
+		finished = true;
+		String e;
+		while ((e = expected.readLine()) != null)
+		{
+			if (flags != COMPARE_EXACT && e.trim().length() == 0)
+			{
+				/* Blank lines at the end only matter when comparing exactly. */
+				continue;
+			}
+			lineNumber++;
+			addMismatch(String.format("line %d: expected \"%s\", output ended", lineNumber, shorten(e)));
+		}
+		expected.close();
+	}
+
+	public void close() throws IOException
+	{
+		try
+		{
+			finish();
+		}
+		finally
+		{
+			super.close();
+		}
+	}
+
+	/**
+	 * Determine whether the output matched the expected output, once
+	 * finish() has been called.
+	 * @return true if every line matched
+	 */
+	public synchronized boolean matches()
+	{
+		return mismatches == 0;
+	}
+
+	/**
+	 * Get the number of lines that differ.
+	 * @return number of differing lines
+	 */
+	public synchronized int getMismatches()
+	{
+		return mismatches;
+	}
+
+	/**
+	 * Get the number of lines compared.
+	 * @return number of lines
+	 */
+	public synchronized int getLineCount()
+	{
+		return lineNumber;
+	}
+
+	/**
+	 * Determine whether stopAfter lines differed, so the mismatch
+	 * listener was called.
+	 * @return true if the mismatch limit was reached
+	 */
+	public synchronized boolean isStopped()
+	{
+		return stopped;
+	}
+
+	/**
+	 * Get the first MAX_DIFF_LINES differences, one per line.
+	 * @return descriptions of the differing lines
+	 */
+	public synchronized ArrayList<String> getDiff()
+	{
+		return new ArrayList<String>(diff);
+	}
+
+	/**
+	 * Add a byte to the current line, up to MAX_LINE_LENGTH bytes.
+	 */
+	private void appendToLine(byte b)
+	{
+		if (lineLength == line.length)
+		{
+			if (line.length >= MAX_LINE_LENGTH)
+			{
+				lineTooLong = true;
+				return;
+			}
+			byte[] larger = new byte[Math.min(MAX_LINE_LENGTH, line.length * 2)];
+			System.arraycopy(line, 0, larger, 0, lineLength);
+			line = larger;
+		}
+		line[lineLength++] = b;
+	}
+
+	/**
+	 * Get the current line without its line terminator, and start a new one.
+	 */
+	private String takeLine()
+	{
+		int length = lineLength;
+		if (length > 0 && line[length - 1] == '\r')
+		{
+			length--;
+		}
+		String s = new String(line, 0, length);
+		lineLength = 0;
+		return s;
+	}
+
+	/**
+	 * Compare a line of output with the next expected line.
+	 * @return true if the mismatch limit was reached by this line
+	 */
+	private boolean compareLine(String actual)
+	{
+		lineNumber++;
+		boolean tooLong = lineTooLong;
+		lineTooLong = false;
+		String e;
+		try
+		{
+			e = finished ? null : expected.readLine();
+		}
+		catch (IOException ex)
+		{
+			e = null;
+		}
+		if (e == null)
+		{
+			if (flags != COMPARE_EXACT && actual.trim().length() == 0)
+			{
+				return false;
+			}
+			return addMismatch(String.format("line %d: unexpected \"%s\"", lineNumber, shorten(actual)));
+		}
+		if (tooLong || !linesMatch(actual, e))
+		{
+			return addMismatch(String.format("line %d: expected \"%s\", got \"%s\"", lineNumber, shorten(e), shorten(actual)));
+		}
+		return false;
+	}
+
+	/**
+	 * Count a differing line, and keep its description if there is room.
+	 * @return true if the mismatch limit was reached by this line
+	 */
+	private boolean addMismatch(String description)
+	{
+		mismatches++;
+		if (diff.size() < MAX_DIFF_LINES)
+		{
+			diff.add(description);
+		}
+		if (stopAfter > 0 && mismatches >= stopAfter && !stopped)
+		{
+			stopped = true;
+			return mismatchListener != null;
+		}
+		return false;
+	}
+
+	/**
+	 * Compare two lines after normalizing them.
+	 */
+	private boolean linesMatch(String actual, String e)
+	{
+		if ((flags & COMPARE_IGNORE_CASE) != 0)
+		{
+			actual = actual.toLowerCase();
+			e = e.toLowerCase();
+		}
+		if ((flags & COMPARE_IGNORE_WHITESPACE) != 0 || tolerance != NO_TOLERANCE)
+		{
+			return wordsMatch(actual.trim().split("\\s+"), e.trim().split("\\s+"));
+		}
+		if ((flags & COMPARE_TRIM) != 0)
+		{
+			return actual.trim().equals(e.trim());
+		}
+		return actual.equals(e);
+	}
+
+	/**
+	 * Compare lines word by word, comparing numbers within the tolerance.
+	 */
+	private boolean wordsMatch(String[] actual, String[] e)
+	{
+		if (actual.length != e.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < actual.length; i++)
+		{
+			if (actual[i].equals(e[i]))
+			{
+				continue;
+			}
+			if (tolerance == NO_TOLERANCE)
+			{
+				return false;
+			}
+			try
+			{
+				double a = Double.parseDouble(actual[i]);
+				double x = Double.parseDouble(e[i]);
+				if (Math.abs(a - x) > tolerance * Math.max(1.0, Math.abs(x)))
+				{
+					return false;
+				}
+			}
+			catch (NumberFormatException ex)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Shorten a line for the list of differences.
+	 */
+	private static String shorten(String s)
+	{
+		if (s.length() <= MAX_SHOWN_LENGTH)
+		{
+			return s;
+		}
+		return s.substring(0, MAX_SHOWN_LENGTH) + "...";
+	}
+}
@@ -0,0 +1,204 @@
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stage of a staged pipeline: a bounded queue of items and a fixed
+ * number of threads that take items from the queue and process them.
+ * A stage's handler passes each item on to the next stages with put(),
+ * which blocks while the next stage's queue is full, so a slow stage
+ * holds back the stages feeding it instead of collecting an unbounded
+ * backlog.  When the last thread of a stage finishes, the stages after
+ * it are closed.
+ *
+ * An exception or error thrown while processing an item is recorded,
+ * and the item is dropped; the stage continues with the next item.  Once
+ * a stage has failed or has no threads left, put() gives up instead of
+ * waiting for room in a queue that nothing will drain, so a dead stage
+ * stops the pipeline rather than deadlocking it.
+ */
+public class PipelineStage<T> {
+	private final static Object END = new Object();
+	private final static long PUT_CHECK_MILLIS = 100;
+
+	/**
+	 * Work done by a stage for each item.
+	 */
+	public interface Handler<T> {
+		void process(T item) throws Exception;
+	}
+
+	private String name;
+	private int threadCount;
+	private Handler<T> handler;
+	private ArrayBlockingQueue<Object> queue;
+	private ArrayList<PipelineStage<T>> nextStages;
+	private ArrayList<Thread> threads;
+	private AtomicInteger running;
+	private volatile Throwable failure;
+
+	/**
+	 * Create a stage.
+	 * @param _name - name of the stage, used to name its threads
+	 * @param _threadCount - number of threads processing items
+	 * @param _queueSize - number of items that may wait in the queue
+	 * @param _handler - work done for each item
+	 */
+	public PipelineStage(String _name, int _threadCount, int _queueSize, Handler<T> _handler)
+	{
+		name = _name;
+		threadCount = Math.max(1, _threadCount);
+		handler = _handler;
+		queue = new ArrayBlockingQueue<Object>(Math.max(1, _queueSize));
+		nextStages = new ArrayList<PipelineStage<T>>();
+		threads = new ArrayList<Thread>();
+		running = new AtomicInteger(threadCount);
+	}
+
+	/**
+	 * Close a stage when this stage has finished.
+	 * @param next - stage fed by this stage
+	 */
+	public void addNextStage(PipelineStage<T> next)
+	{
+		nextStages.add(next);
+	}
+
+	/**
+	 * Start the threads of the stage.
+	 */
+	public void start()
+	{
+		for (int i = 0; i < threadCount; i++)
+		{
+			Thread t = new Thread(new Runnable() {
+				public void run()
+				{
+					work();
+				}
+			}, name + "-" + (i + 1));
+			t.setDaemon(true);
+			threads.add(t);
+			t.start();
+		}
+	}
+
+	/**
+	 * Add an item to the queue, waiting while the queue is full.
+	 * @param item - item to process
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if the stage has failed or has no
+	 *  threads left to take the item
+	 */
+	public void put(T item) throws InterruptedException
+	{
+		while (!queue.offer(item, PUT_CHECK_MILLIS, TimeUnit.MILLISECONDS))
+		{
+			if (failure != null || running.get() == 0)
+			{
+				throw new IllegalStateException("Pipeline stage " + name + " has stopped", failure);
+			}
+		}
+	}
+
+	/**
+	 * Signal that no more items will be added.  The threads finish after
+	 * processing the items already in the queue.  Nothing is signalled to
+	 * a stage with no threads left.
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException
+	{
+		for (int i = 0; i < threadCount; i++)
+		{
+			while (!queue.offer(END, PUT_CHECK_MILLIS, TimeUnit.MILLISECONDS))
+			{
+				if (running.get() == 0)
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for the threads of the stage to finish.
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException
+	{
+		for (Thread t : threads)
+		{
+			t.join();
+		}
+	}
+
+	/**
+	 * Get the first exception or error thrown while processing an item.
+	 * @return exception or error, or null if every item was processed
+	 */
+	public Throwable getFailure()
+	{
+		return failure;
+	}
+
+	/**
+	 * Process items until the end of the queue, then close the next
+	 * stages if this is the last thread to finish.
+	 */
+	@SuppressWarnings("unchecked")
+	private void work()
+	{
+		try
+		{
+			while (true)
+			{
+				Object item = queue.take();
+				if (item == END)
+				{
+					break;
+				}
+				try
+				{
+					handler.process((T) item);
+				}
+				catch (InterruptedException e)
+				{
+					throw e;
+				}
+				catch (Throwable e)
+				{
+					synchronized (this)
+					{
+						if (failure == null)
+						{
+							failure = e;
+						}
+					}
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			if (running.decrementAndGet() == 0)
+			{
+				for (PipelineStage<T> next : nextStages)
+				{
+					try
+					{
+						next.close();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}
+	}
+}
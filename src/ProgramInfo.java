@@ -1,6 +1,8 @@
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.xml.xpath.*;
 
@@ -15,12 +17,19 @@ import org.w3c.dom.NodeList;
  *
  */
 public class ProgramInfo {
+	/* Start-up options of the fast-start launch profile. */
+	public final static String[] FAST_START_OPTIONS = {
+		"-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC", "-XX:-UsePerfData", "-Xshare:auto"
+	};
 	private String name;
 	private String classpath;
 	private String securityPolicyFile;
 	private AssignmentClasses[] classes;
 	private RunConfiguration[] runConfigurations;
 	private CopyFile[] filesToCopy;
+	private String[] launchOptions;
+	private boolean useSharedArchive;
+	private File sharedArchive;
 	
 	/**
 	 * Construct a new ProgramInfo object from the name, classes,
@@ -86,6 +95,33 @@ public class ProgramInfo {
 			}
 		}
 
+		// Get the options for starting the program's JVM, if any.
+		launchOptions = new String[0];
+		n = (Node)xpath.evaluate("launch", program, XPathConstants.NODE);
+		if (n != null)
+		{
+			ArrayList<String> options = new ArrayList<String>();
+			Node fastStart = n.getAttributes().getNamedItem("fastStart");
+			if (fastStart == null || fastStart.getTextContent().trim().equalsIgnoreCase("yes"))
+			{
+				options.addAll(Arrays.asList(FAST_START_OPTIONS));
+			}
+			Node heap = n.getAttributes().getNamedItem("heap");
+			if (heap != null)
+			{
+				options.add("-Xms" + heap.getTextContent().trim());
+				options.add("-Xmx" + heap.getTextContent().trim());
+			}
+			nl = (NodeList)xpath.evaluate("option", n, XPathConstants.NODESET);
+			for (int i = 0; i < nl.getLength(); i++)
+			{
+				options.add(nl.item(i).getTextContent().trim());
+			}
+			launchOptions = options.toArray(new String[options.size()]);
+			Node archive = n.getAttributes().getNamedItem("sharedArchive");
+			useSharedArchive = archive == null || archive.getTextContent().trim().equalsIgnoreCase("yes");
+		}
+
 		nl = (NodeList)xpath.evaluate("runConfiguration", program, XPathConstants.NODESET);
 		runConfigurations = new RunConfiguration[nl.getLength()];
 		for (int i = 0; i < nl.getLength(); i++)
@@ -113,6 +149,48 @@ public class ProgramInfo {
 		return classpath;
 	}
 	
+	/**
+	 * Get the options for starting the JVM that runs the program, set by
+	 * the launch element: the fast-start profile (FAST_START_OPTIONS,
+	 * unless fastStart="no"), a fixed heap size from the heap attribute,
+	 * and any option elements.  The fast-start profile compiles with C1
+	 * only, which suits short runs rather than benchmarks.
+	 * @return JVM options, empty if none
+	 */
+	public String[] getLaunchOptions()
+	{
+		return launchOptions;
+	}
+
+	/**
+	 * Determine whether the program's JVMs should use a shared class
+	 * archive, as set by the launch element's sharedArchive attribute
+	 * (yes by default).
+	 * @return true if an archive should be built for the program
+	 */
+	public boolean usesSharedArchive()
+	{
+		return useSharedArchive;
+	}
+
+	/**
+	 * Set the shared class archive built for the program.
+	 * @param archive - archive file, or null if none
+	 */
+	public void setSharedArchive(File archive)
+	{
+		sharedArchive = archive;
+	}
+
+	/**
+	 * Get the shared class archive built for the program.
+	 * @return archive file, or null if none
+	 */
+	public File getSharedArchive()
+	{
+		return sharedArchive;
+	}
+
 	/**
 	 * Get the name of the security policy file, or null if none.
 	 * @return securityPolicyFile
@@ -0,0 +1,259 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of program runs saved between grading runs, so a program is
+ * not run again when nothing it depends on has changed.  An entry is
+ * keyed by a SHA-256 hash of the class files and data files in the
+ * student's directory, the version of the java command, the classpath,
+ * the security policy file, the program's arguments, properties and
+ * standard input, and the settings that affect the report of the run
+ * (see key()).  Each
+ * entry is a file holding the run's exit code, resource use and report
+ * text.  Entries are written to a temporary file and then renamed into
+ * place, so the cache is safe for use by several threads or grading runs
+ * at once.
+ *
+ * Runs that write an output file, benchmark runs, and runs that were
+ * stopped for taking too long are not saved, as their results are not
+ * fully captured or depend on the machine's load.
+ */
+public class RunCache {
+	private final static String ENTRY_SUFFIX = ".txt";
+
+	private File directory;
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Saved result of a run.
+	 */
+	public static class Entry {
+		public final int exitCode;
+		public final RunStats stats;
+		public final String output;
+
+		Entry(int _exitCode, RunStats _stats, String _output)
+		{
+			exitCode = _exitCode;
+			stats = _stats;
+			output = _output;
+		}
+	}
+
+	/**
+	 * Use a cache directory, creating it if needed.
+	 * @param _directory - cache directory
+	 * @throws IOException
+	 */
+	public RunCache(File _directory) throws IOException
+	{
+		directory = _directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Could not create directory: " + directory.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Hash the class files in a student's directory, once for all of the
+	 * student's runs.
+	 * @param dir - working directory containing the class files
+	 * @return hash, in hexadecimal
+	 * @throws IOException
+	 */
+	public static String hashClassFiles(File dir) throws IOException
+	{
+		ArrayList<String> classFiles = new ArrayList<String>(CompileCache.listClassFiles(dir).keySet());
+		Collections.sort(classFiles);
+		MessageDigest digest = CompileCache.newDigest();
+		for (String cf : classFiles)
+		{
+			CompileCache.update(digest, cf);
+			CompileCache.updateFile(digest, new File(dir, cf));
+		}
+		return CompileCache.toHex(digest);
+	}
+
+	/**
+	 * Hash the data files in a student's directory that the student's
+	 * runs may read, once for all of the student's runs.
+	 * @param dir - working directory of the runs
+	 * @param files - paths of the data files, relative to the directory
+	 * @return hash, in hexadecimal
+	 * @throws IOException
+	 */
+	public static String hashDataFiles(File dir, List<String> files) throws IOException
+	{
+		ArrayList<String> sorted = new ArrayList<String>(files);
+		Collections.sort(sorted);
+		MessageDigest digest = CompileCache.newDigest();
+		for (String df : sorted)
+		{
+			File f = new File(dir, df);
+			CompileCache.update(digest, df);
+			if (f.isFile())
+			{
+				CompileCache.updateFile(digest, f);
+			}
+			else
+			{
+				CompileCache.update(digest, "-");
+			}
+		}
+		return CompileCache.toHex(digest);
+	}
+
+	/**
+	 * Compute the cache key of a run.
+	 * @param classHash - hash of the class files from hashClassFiles()
+	 * @param settings - strings identifying the run and how it is
+	 *  reported: the student, program, data files hash, java version,
+	 *  classpath, run mode and report settings of the run configuration
+	 * @param args - arguments of the program
+	 * @param properties - properties set for the program, or null
+	 * @param files - files read by the run, such as its standard input,
+	 *  expected output and security policy; null if the run has no such
+	 *  file
+	 * @return key, in hexadecimal
+	 * @throws IOException
+	 */
+	public static String key(String classHash, String[] settings, String[] args, String[] properties, File[] files) throws IOException
+	{
+		MessageDigest digest = CompileCache.newDigest();
+		CompileCache.update(digest, classHash);
+		for (String s : settings)
+		{
+			CompileCache.update(digest, s == null ? "" : s);
+		}
+		CompileCache.update(digest, Integer.toString(args.length));
+		for (String a : args)
+		{
+			CompileCache.update(digest, a);
+		}
+		CompileCache.update(digest, properties == null ? "-" : Integer.toString(properties.length));
+		if (properties != null)
+		{
+			for (String p : properties)
+			{
+				CompileCache.update(digest, p);
+			}
+		}
+		for (File f : files)
+		{
+			if (f == null)
+			{
+				CompileCache.update(digest, "-");
+			}
+			else
+			{
+				CompileCache.update(digest, f.getPath());
+				CompileCache.updateFile(digest, f);
+			}
+		}
+		return CompileCache.toHex(digest);
+	}
+
+	/**
+	 * Look up a run.  An entry that cannot be read, such as one cut short
+	 * when the disk filled up, is deleted and counted as a miss.
+	 * @param key - cache key from key()
+	 * @return saved result, or null if the run is not in the cache
+	 * @throws IOException
+	 */
+	public Entry get(String key) throws IOException
+	{
+		File entryFile = entryFile(key);
+		if (!entryFile.isFile())
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		String result = new String(Files.readAllBytes(entryFile.toPath()), StandardCharsets.UTF_8);
+		int newline = result.indexOf('\n');
+		String[] fields = newline < 0 ? new String[0] : result.substring(0, newline).split(" ");
+		if (fields.length == 4)
+		{
+			try
+			{
+				RunStats stats = new RunStats(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+				Entry entry = new Entry(Integer.parseInt(fields[0]), stats, result.substring(newline + 1));
+				hits.incrementAndGet();
+				return entry;
+			}
+			catch (NumberFormatException e)
+			{
+			}
+		}
+		entryFile.delete();
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Save a run.  If another thread saved the same run first, its entry
+	 * is kept.
+	 * @param key - cache key from key()
+	 * @param exitCode - exit code of the run
+	 * @param stats - resources used by the run
+	 * @param output - report text of the run
+	 * @throws IOException
+	 */
+	public void put(String key, int exitCode, RunStats stats, String output) throws IOException
+	{
+		File entryFile = entryFile(key);
+		if (entryFile.isFile())
+		{
+			return;
+		}
+		File parent = entryFile.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+		{
+			throw new IOException("Could not create directory: " + parent.getAbsolutePath());
+		}
+		File tempFile = File.createTempFile(key.substring(0, 8), ENTRY_SUFFIX, parent);
+		try
+		{
+			PrintWriter out = new PrintWriter(tempFile, "UTF-8");
+			out.printf("%d %d %d %d\n", exitCode, stats.getWallMillis(), stats.getCpuMillis(), stats.getPeakMemoryKb());
+			out.print(output);
+			out.close();
+			if (tempFile.renameTo(entryFile))
+			{
+				return;
+			}
+		}
+		catch (IOException e)
+		{
+			tempFile.delete();
+			throw e;
+		}
+		/* Lost the race to another thread or grading run. */
+		tempFile.delete();
+	}
+
+	/**
+	 * Get the file of an entry, spread over subdirectories named by the
+	 * first two digits of the key.
+	 */
+	private File entryFile(String key)
+	{
+		return new File(new File(directory, key.substring(0, 2)), key + ENTRY_SUFFIX);
+	}
+
+	/**
+	 * Describe how many runs were found in the cache.
+	 */
+	public String toString()
+	{
+		return String.format("%d runs reused, %d run", hits.get(), misses.get());
+	}
+}
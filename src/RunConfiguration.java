@@ -2,6 +2,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
+import java.io.OutputStream;
 import javax.xml.xpath.*;
 
 import org.w3c.dom.Node;
@@ -14,17 +15,32 @@ import org.w3c.dom.NamedNodeMap;
  */
 public class RunConfiguration {
 	public static final int FILE_SUBMITTED = 1;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 15000;
+	public static final int DEFAULT_OUTPUT_HEAD_LIMIT = 4096;
 	private String name;
 	private String[] arguments;
 	private String[] properties; // Optional properties to set when running the program. Can be null.
 	private int inputFileFlags;
 	private String inputFile;
 	private String outputFile;
+	private long timeoutMillis;
+	private int outputHeadLimit;
+	private int outputTailLimit;
+	private long outputKillLimit;
+	private int benchmarkWarmups;
+	private int benchmarkIterations;
+	private long benchmarkReferenceMillis;
+	private String expectedOutputFile;
+	private int outputCompareFlags;
+	private double outputTolerance = OutputComparator.NO_TOLERANCE;
+	private int stopAfterMismatches;
 	
 	public RunConfiguration()
 	{
 		arguments = new String[0];
 		properties = null;
+		timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+		outputHeadLimit = DEFAULT_OUTPUT_HEAD_LIMIT;
 	}
 	
 	/**
@@ -77,6 +93,71 @@ public class RunConfiguration {
 		n = (Node)xpath.evaluate("outputFile", e, XPathConstants.NODE);
 		if (n != null)
 			outputFile = n.getTextContent();
+
+		timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+		n = (Node)xpath.evaluate("timeout", e, XPathConstants.NODE);
+		if (n != null)
+			timeoutMillis = (long) (Double.parseDouble(n.getTextContent().trim()) * 1000);
+
+		outputHeadLimit = DEFAULT_OUTPUT_HEAD_LIMIT;
+		n = (Node)xpath.evaluate("outputLimit", e, XPathConstants.NODE);
+		if (n != null)
+		{
+			NamedNodeMap attrs = n.getAttributes();
+			Node an = attrs.getNamedItem("head");
+			if (an != null)
+				outputHeadLimit = Integer.parseInt(an.getTextContent().trim());
+			an = attrs.getNamedItem("tail");
+			if (an != null)
+				outputTailLimit = Integer.parseInt(an.getTextContent().trim());
+			an = attrs.getNamedItem("kill");
+			if (an != null)
+				outputKillLimit = Long.parseLong(an.getTextContent().trim());
+		}
+
+		n = (Node)xpath.evaluate("benchmark", e, XPathConstants.NODE);
+		if (n != null)
+		{
+			NamedNodeMap attrs = n.getAttributes();
+			benchmarkIterations = 1;
+			Node an = attrs.getNamedItem("warmups");
+			if (an != null)
+				benchmarkWarmups = Integer.parseInt(an.getTextContent().trim());
+			an = attrs.getNamedItem("iterations");
+			if (an != null)
+				benchmarkIterations = Integer.parseInt(an.getTextContent().trim());
+			an = attrs.getNamedItem("reference");
+			if (an != null)
+				benchmarkReferenceMillis = (long) (Double.parseDouble(an.getTextContent().trim()) * 1000);
+		}
+
+		n = (Node)xpath.evaluate("expectedOutput", e, XPathConstants.NODE);
+		if (n != null)
+		{
+			expectedOutputFile = n.getTextContent().trim();
+			NamedNodeMap attrs = n.getAttributes();
+			Node an = attrs.getNamedItem("compare");
+			if (an != null)
+			{
+				for (String mode : an.getTextContent().trim().split("[\\s,]+"))
+				{
+					if (mode.equalsIgnoreCase("trim"))
+						outputCompareFlags |= OutputComparator.COMPARE_TRIM;
+					else if (mode.equalsIgnoreCase("ignoreCase"))
+						outputCompareFlags |= OutputComparator.COMPARE_IGNORE_CASE;
+					else if (mode.equalsIgnoreCase("ignoreWhitespace"))
+						outputCompareFlags |= OutputComparator.COMPARE_IGNORE_WHITESPACE;
+					else if (!mode.equalsIgnoreCase("exact"))
+						throw new IllegalArgumentException("Unknown expectedOutput compare mode " + mode);
+				}
+			}
+			an = attrs.getNamedItem("tolerance");
+			if (an != null)
+				outputTolerance = Double.parseDouble(an.getTextContent().trim());
+			an = attrs.getNamedItem("stopAfter");
+			if (an != null)
+				stopAfterMismatches = Integer.parseInt(an.getTextContent().trim());
+		}
 	}
 	
 	/**
@@ -134,6 +215,186 @@ public class RunConfiguration {
 		return properties;
 	}
 		
+	/**
+	 * Set the time allowed for a run of the program.
+	 * @param newTimeoutMillis time limit in milliseconds
+	 */
+	public void setTimeoutMillis(long newTimeoutMillis)
+	{
+		timeoutMillis = newTimeoutMillis;
+	}
+
+	/**
+	 * Get the time allowed for a run of the program, set in seconds by
+	 * the timeout element (15 seconds by default).
+	 * @return time limit in milliseconds
+	 */
+	public long getTimeoutMillis()
+	{
+		return timeoutMillis;
+	}
+		
+	/**
+	 * Set the limits on the output kept from a run of the program.
+	 * @param head number of bytes kept from the start of each output stream
+	 * @param tail number of bytes kept from the end of each output stream
+	 * @param kill number of bytes of output after which the program is
+	 *  stopped, or 0 for no limit
+	 */
+	public void setOutputLimits(int head, int tail, long kill)
+	{
+		outputHeadLimit = head;
+		outputTailLimit = tail;
+		outputKillLimit = kill;
+	}
+
+	/**
+	 * Get the number of bytes of output after which the program is stopped.
+	 * @return output limit, or 0 for no limit
+	 */
+	public long getOutputKillLimit()
+	{
+		return outputKillLimit;
+	}
+
+	/**
+	 * Create a stream to collect an output stream of a run of the
+	 * program, with the limits set by the outputLimit element's head,
+	 * tail and kill attributes (by default, the first 4096 bytes are
+	 * kept and the program is not stopped).
+	 * @return capped output stream
+	 */
+	public CappedOutputStream createOutputCapture()
+	{
+		return new CappedOutputStream(outputHeadLimit, outputTailLimit, outputKillLimit);
+	}
+
+	/**
+	 * Make the run configuration a benchmark: the program is run
+	 * warmups + iterations times, and the times of the last iterations
+	 * runs are reported.
+	 * @param warmups number of runs not counted
+	 * @param iterations number of runs counted, or 0 to run once as usual
+	 * @param referenceMillis elapsed time of a reference solution, or 0
+	 */
+	public void setBenchmark(int warmups, int iterations, long referenceMillis)
+	{
+		benchmarkWarmups = warmups;
+		benchmarkIterations = iterations;
+		benchmarkReferenceMillis = referenceMillis;
+	}
+
+	/**
+	 * Determine whether the run configuration is a benchmark, set by the
+	 * benchmark element, whose warmups and iterations attributes give
+	 * the number of runs not counted and counted, and whose reference
+	 * attribute gives a reference solution's time in seconds.
+	 * @return true if the program is run repeatedly
+	 */
+	public boolean isBenchmark()
+	{
+		return benchmarkIterations > 0;
+	}
+
+	/**
+	 * Get the number of runs of a benchmark that are not counted.
+	 * @return number of warm-up runs
+	 */
+	public int getBenchmarkWarmups()
+	{
+		return benchmarkWarmups;
+	}
+
+	/**
+	 * Get the number of runs of a benchmark that are counted.
+	 * @return number of runs, or 0 if not a benchmark
+	 */
+	public int getBenchmarkIterations()
+	{
+		return benchmarkIterations;
+	}
+
+	/**
+	 * Get the elapsed time of the reference solution of a benchmark.
+	 * @return milliseconds, or 0 if none
+	 */
+	public long getBenchmarkReferenceMillis()
+	{
+		return benchmarkReferenceMillis;
+	}
+
+	/**
+	 * Set the file of expected output that the program's standard
+	 * output is compared with.
+	 * @param newExpectedOutputFile filename of the expected output, or null
+	 * @param flags sum of the OutputComparator.COMPARE_ flags
+	 * @param tolerance largest difference allowed between numbers, or
+	 *  OutputComparator.NO_TOLERANCE
+	 * @param stopAfter number of differing lines after which the program
+	 *  is stopped, or 0 for no limit
+	 */
+	public void setExpectedOutput(String newExpectedOutputFile, int flags, double tolerance, int stopAfter)
+	{
+		expectedOutputFile = newExpectedOutputFile;
+		outputCompareFlags = flags;
+		outputTolerance = tolerance;
+		stopAfterMismatches = stopAfter;
+	}
+
+	/**
+	 * Determine whether the program's output is compared with an
+	 * expected output file, set by the expectedOutput element.
+	 * @return true if there is expected output
+	 */
+	public boolean hasExpectedOutput()
+	{
+		return expectedOutputFile != null;
+	}
+
+	/**
+	 * Create a stream that compares the program's standard output with
+	 * the expected output file as it is written, and passes it on.  The
+	 * expectedOutput element's compare attribute lists the normalizations
+	 * (trim, ignoreCase, ignoreWhitespace; exact by default), its
+	 * tolerance attribute allows numbers to differ, and its stopAfter
+	 * attribute stops the program after that many differing lines.
+	 * @param out stream receiving the output
+	 * @return comparing stream, or null if there is no expected output
+	 * @throws FileNotFoundException
+	 */
+	public OutputComparator createOutputComparator(OutputStream out) throws FileNotFoundException
+	{
+		if (expectedOutputFile == null)
+			return null;
+		return new OutputComparator(out, new File(expectedOutputFile), outputCompareFlags, outputTolerance, stopAfterMismatches);
+	}
+
+	/**
+	 * Get the file of expected output that the program's standard
+	 * output is compared with.
+	 * @return expected output file, or null if none
+	 */
+	public File getExpectedOutputFile()
+	{
+		if (expectedOutputFile == null)
+			return null;
+		return new File(expectedOutputFile);
+	}
+
+	/**
+	 * Describe the settings, other than the arguments, properties and
+	 * files, that change what the report of a run shows: the time
+	 * limit, output limits and output comparison.  Used in the keys of
+	 * saved run results.
+	 * @return description of the settings
+	 */
+	public String describeReportSettings()
+	{
+		return String.format("timeout=%d head=%d tail=%d kill=%d compare=%d tolerance=%s stopAfter=%d",
+				timeoutMillis, outputHeadLimit, outputTailLimit, outputKillLimit,
+				outputCompareFlags, Double.toString(outputTolerance), stopAfterMismatches);
+	}
+
 	/**
 	 * Get the name of the program.
 	 * @return program name
@@ -151,13 +412,27 @@ public class RunConfiguration {
 	 * @throws FileNotFoundException
 	 */
 	public FileInputStream openInputFile(String subdir) throws FileNotFoundException
+	{
+		File f = getInputFile(subdir);
+		if (f == null)
+			return null;
+		return new FileInputStream(f);
+	}
+
+	/**
+	 * Get the input file to be used for standard input when the program is run.
+	 * @param subdir If inputFileFlags is FILE_SUBMITTED, the student's directory
+	 *  containing the input file
+	 * @return input file, or null if none
+	 */
+	public File getInputFile(String subdir)
 	{
 		if (inputFile == null)
 			return null;
 		String path = inputFile;
 		if (inputFileFlags == FILE_SUBMITTED)
 			path = subdir + File.separator + inputFile;
-		return new FileInputStream(path);
+		return new File(path);
 	}
 		
 	/**
@@ -167,9 +442,22 @@ public class RunConfiguration {
 	 * @throws FileNotFoundException
 	 */
 	public FileOutputStream openOutputFile(String subdir) throws FileNotFoundException
+	{
+		File f = getOutputFile(subdir);
+		if (f == null)
+			return null;
+		return new FileOutputStream(f);
+	}
+
+	/**
+	 * Get the output file to contain standard output from the program.
+	 * @param subdir The student's directory to contain the output file.
+	 * @return output file, or null if none
+	 */
+	public File getOutputFile(String subdir)
 	{
 		if (outputFile == null)
 			return null;
-		return new FileOutputStream(subdir + File.separator + outputFile);
+		return new File(subdir + File.separator + outputFile);
 	}
 }
@@ -0,0 +1,166 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+
+/**
+ * The threads that belong to one run of a program, such as the threads
+ * copying its standard input and output.  Threads are started with
+ * fork() and all end with the run: close() waits up to
+ * CLOSE_GRACE_MILLIS for them, then closes the streams registered with
+ * closeOnCancel() and interrupts any threads still running, so a run
+ * that timed out or crashed does not leave threads behind.
+ *
+ * When the JVM has virtual threads (Java 21 and later), the threads are
+ * virtual threads, which cost little while blocked on a pipe.  Otherwise
+ * they are daemon platform threads.
+ */
+public class RunScope implements Closeable {
+	public final static long CLOSE_GRACE_MILLIS = 1000;
+
+	private static Object virtualBuilder;
+	private static Method nameMethod;
+	private static Method unstartedMethod;
+
+	static
+	{
+		try
+		{
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+			nameMethod = builderClass.getMethod("name", String.class);
+			unstartedMethod = builderClass.getMethod("unstarted", Runnable.class);
+		}
+		catch (Exception e)
+		{
+			/* No virtual threads in this JVM; use platform threads. */
+			virtualBuilder = null;
+		}
+	}
+
+	private String name;
+	private ArrayList<Thread> threads;
+	private ArrayList<Closeable> resources;
+	private boolean closed;
+
+	/**
+	 * Create a scope for a run.
+	 * @param _name - name of the run, used to name its threads
+	 */
+	public RunScope(String _name)
+	{
+		name = _name;
+		threads = new ArrayList<Thread>();
+		resources = new ArrayList<Closeable>();
+	}
+
+	/**
+	 * Start a thread in the scope.
+	 * @param task - work done by the thread
+	 * @param taskName - name of the task within the run
+	 * @return started thread
+	 */
+	public synchronized Thread fork(Runnable task, String taskName)
+	{
+		if (closed)
+		{
+			throw new IllegalStateException("Run scope " + name + " is closed");
+		}
+		Thread t = newThread(task, name + ": " + taskName);
+		threads.add(t);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Close a stream if the scope's threads have not finished when the
+	 * scope is closed, so that threads blocked on it can end.
+	 * @param resource - stream used by the scope's threads
+	 */
+	public synchronized void closeOnCancel(Closeable resource)
+	{
+		resources.add(resource);
+	}
+
+	/**
+	 * End the scope: wait briefly for its threads, then cancel the ones
+	 * still running.  May be called more than once.
+	 */
+	public void close()
+	{
+		ArrayList<Thread> running;
+		synchronized (this)
+		{
+			closed = true;
+			running = new ArrayList<Thread>(threads);
+		}
+		long deadline = System.currentTimeMillis() + CLOSE_GRACE_MILLIS;
+		try
+		{
+			for (Thread t : running)
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining > 0)
+				{
+					t.join(remaining);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		boolean cancel = false;
+		for (Thread t : running)
+		{
+			cancel |= t.isAlive();
+		}
+		if (!cancel)
+		{
+			return;
+		}
+		for (Closeable c : resources)
+		{
+			try
+			{
+				c.close();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+		for (Thread t : running)
+		{
+			t.interrupt();
+		}
+	}
+
+	/**
+	 * Create an unstarted thread, virtual if the JVM supports it.
+	 * @param task - work done by the thread
+	 * @param threadName - name of the thread
+	 * @return new thread
+	 */
+	private static Thread newThread(Runnable task, String threadName)
+	{
+		if (virtualBuilder != null)
+		{
+			try
+			{
+				synchronized (virtualBuilder)
+				{
+					/* The builder is not thread-safe. */
+					nameMethod.invoke(virtualBuilder, threadName);
+					return (Thread) unstartedMethod.invoke(virtualBuilder, task);
+				}
+			}
+			catch (Exception e)
+			{
+				throw new IllegalStateException("Cannot create virtual thread", e);
+			}
+		}
+		Thread t = new Thread(task, threadName);
+		t.setDaemon(true);
+		return t;
+	}
+}
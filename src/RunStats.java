@@ -0,0 +1,70 @@
+/**
+ * Resources used by one run of a program: the elapsed (wall-clock) time,
+ * the CPU time, and the peak resident memory of the process.  CPU time
+ * and memory are sampled by the run's Watchdog while the process is
+ * alive, so a run shorter than a sampling interval may show less than it
+ * used.  A run in a worker JVM is charged the worker's CPU time during
+ * the run, and the worker's peak memory since it started.
+ */
+public class RunStats {
+	public final static long UNKNOWN = -1;
+
+	private long wallMillis;
+	private long cpuMillis;
+	private long peakMemoryKb;
+
+	/**
+	 * Record the resources used by a run.
+	 * @param _wallMillis - elapsed time of the run
+	 * @param _cpuMillis - CPU time of the run, or UNKNOWN
+	 * @param _peakMemoryKb - peak resident memory in kilobytes, or UNKNOWN
+	 */
+	public RunStats(long _wallMillis, long _cpuMillis, long _peakMemoryKb)
+	{
+		wallMillis = _wallMillis;
+		cpuMillis = _cpuMillis;
+		peakMemoryKb = _peakMemoryKb;
+	}
+
+	/**
+	 * Get the elapsed time of the run.
+	 * @return milliseconds
+	 */
+	public long getWallMillis()
+	{
+		return wallMillis;
+	}
+
+	/**
+	 * Get the CPU time of the run, user and system.
+	 * @return milliseconds, or UNKNOWN
+	 */
+	public long getCpuMillis()
+	{
+		return cpuMillis;
+	}
+
+	/**
+	 * Get the peak resident memory of the process.
+	 * @return kilobytes, or UNKNOWN
+	 */
+	public long getPeakMemoryKb()
+	{
+		return peakMemoryKb;
+	}
+
+	public String toString()
+	{
+		StringBuffer r = new StringBuffer();
+		r.append(String.format("%.2f s elapsed", wallMillis / 1000.0));
+		if (cpuMillis != UNKNOWN)
+		{
+			r.append(String.format(", %.2f s CPU", cpuMillis / 1000.0));
+		}
+		if (peakMemoryKb != UNKNOWN)
+		{
+			r.append(String.format(", %.1f MB peak memory", peakMemoryKb / 1024.0));
+		}
+		return r.toString();
+	}
+}
@@ -0,0 +1,229 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Builds a Class Data Sharing (CDS) archive for the JVMs that run
+ * students' programs, so each JVM maps the classes it loads at start-up
+ * instead of loading and verifying them.  The archive holds the JDK's
+ * default classes and every class in the shared jars at the start of a
+ * program's classpath.  It is built with the same java command as the
+ * runs, since an archive only works with the JVM that wrote it, and is
+ * named by a hash of the jars and the java command's version, so an
+ * archive kept in the cache directory is reused by later grading runs
+ * until either changes.  An archive is written to a temporary file and
+ * renamed into place, so it never changes under a JVM that is using it.
+ *
+ * A JVM uses an archive's jars only if its classpath starts with the
+ * same jars, and students' directories differ, so only absolute jar
+ * paths at the start of the classpath are archived: list shared jars
+ * such as jsoup before "." in the classpath to have them archived.  A
+ * JVM that cannot use the archive (with -Xshare:auto) starts normally.
+ */
+public class SharedArchive {
+	private final static String CLASS_SUFFIX = ".class";
+
+	private static String javaVersion;
+
+	/**
+	 * Get the part of a classpath that can be archived: the absolute
+	 * paths of jar files at its start.
+	 * @param classpath - classpath setting of a program, or null
+	 * @return classpath of the archive, empty if no jars can be archived
+	 */
+	public static String archiveClasspath(String classpath)
+	{
+		StringBuilder jars = new StringBuilder();
+		if (classpath == null)
+		{
+			return "";
+		}
+		for (String entry : classpath.split(File.pathSeparator))
+		{
+			File f = new File(entry);
+			if (!f.isAbsolute() || !f.isFile() || !entry.endsWith(".jar"))
+			{
+				break;
+			}
+			if (jars.length() > 0)
+			{
+				jars.append(File.pathSeparator);
+			}
+			jars.append(entry);
+		}
+		return jars.toString();
+	}
+
+	/**
+	 * Get the file of the archive for a set of jars, named by a hash of
+	 * the jars' paths and contents and the java command's version.
+	 * @param directory - directory of the archive
+	 * @param jars - classpath of the archive, from archiveClasspath()
+	 * @return archive file, which may not exist yet
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static File archiveFile(File directory, String jars) throws IOException, InterruptedException
+	{
+		MessageDigest digest = CompileCache.newDigest();
+		CompileCache.update(digest, javaVersion());
+		if (jars.length() > 0)
+		{
+			for (String jar : jars.split(File.pathSeparator))
+			{
+				CompileCache.update(digest, jar);
+				CompileCache.updateFile(digest, new File(jar));
+			}
+		}
+		return new File(directory, "classes-" + CompileCache.toHex(digest).substring(0, 16) + ".jsa");
+	}
+
+	/**
+	 * Build an archive of the JDK's default classes and the classes in
+	 * the jars of the given classpath.  If another grading run writes the
+	 * same archive first, its archive is kept.
+	 * @param archive - archive file to write
+	 * @param jars - classpath of the archive, from archiveClasspath()
+	 * @return true if the archive was written
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static boolean build(File archive, String jars) throws IOException, InterruptedException
+	{
+		File classList = File.createTempFile("classlist", ".txt");
+		File tempFile = File.createTempFile("classes", ".tmp", archive.getAbsoluteFile().getParentFile());
+		try
+		{
+			writeClassList(classList, jars);
+			ArrayList<String> cmd = new ArrayList<String>();
+			cmd.add("java");
+			cmd.add("-Xshare:dump");
+			cmd.add("-XX:SharedClassListFile=" + classList.getAbsolutePath());
+			cmd.add("-XX:SharedArchiveFile=" + tempFile.getAbsolutePath());
+			if (jars.length() > 0)
+			{
+				cmd.add("-classpath");
+				cmd.add(jars);
+			}
+			Process p = start(cmd.toArray(new String[cmd.size()]));
+			String output = readOutput(p);
+			if (p.waitFor() != 0 || tempFile.length() == 0)
+			{
+				System.out.println("Warning: Could not build shared class archive " + archive + ":\n" + output);
+				return false;
+			}
+			/* Failing to rename means another grading run put the archive in place first. */
+			return tempFile.renameTo(archive) || archive.isFile();
+		}
+		finally
+		{
+			classList.delete();
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Get the version of the java command, once per grading run.
+	 * @return output of java -version
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	static synchronized String javaVersion() throws IOException, InterruptedException
+	{
+		if (javaVersion == null)
+		{
+			javaVersion = run(new String[] { "java", "-version" });
+		}
+		return javaVersion;
+	}
+
+	/**
+	 * Run a command and get its output, both standard output and error.
+	 */
+	static String run(String[] cmd) throws IOException, InterruptedException
+	{
+		Process p = start(cmd);
+		String output = readOutput(p);
+		p.waitFor();
+		return output;
+	}
+
+	private static Process start(String[] cmd) throws IOException
+	{
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.redirectErrorStream(true);
+		return pb.start();
+	}
+
+	private static String readOutput(Process p) throws IOException
+	{
+		StringBuffer output = new StringBuffer();
+		BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+		String line;
+		while ((line = in.readLine()) != null)
+		{
+			output.append(line + "\n");
+		}
+		in.close();
+		return output.toString();
+	}
+
+	/**
+	 * Write the list of classes to archive: the JDK's default class list,
+	 * followed by the classes in the jars.
+	 */
+	private static void writeClassList(File classList, String jars) throws IOException
+	{
+		PrintWriter out = new PrintWriter(classList);
+		try
+		{
+			File defaultList = new File(System.getProperty("java.home"), "lib" + File.separator + "classlist");
+			if (defaultList.isFile())
+			{
+				BufferedReader in = new BufferedReader(new FileReader(defaultList));
+				String line;
+				while ((line = in.readLine()) != null)
+				{
+					out.println(line);
+				}
+				in.close();
+			}
+			if (jars.length() == 0)
+			{
+				return;
+			}
+			for (String jar : jars.split(File.pathSeparator))
+			{
+				ZipFile zip = new ZipFile(jar);
+				try
+				{
+					Enumeration<? extends ZipEntry> entries = zip.entries();
+					while (entries.hasMoreElements())
+					{
+						String name = entries.nextElement().getName();
+						if (name.endsWith(CLASS_SUFFIX) && !name.startsWith("META-INF/") && !name.endsWith("module-info.class"))
+						{
+							out.println(name.substring(0, name.length() - CLASS_SUFFIX.length()));
+						}
+					}
+				}
+				finally
+				{
+					zip.close();
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
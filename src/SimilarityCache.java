@@ -0,0 +1,197 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Similarity scores of document pairs saved between grading runs.
+ * Pairs are keyed by the hash and length of both normalized documents,
+ * so a rerun only compares pairs involving new or changed documents.
+ * Scores are only valid for the threshold they were computed with; a
+ * cache file written with a different threshold is ignored.  Only the
+ * pairs looked up or added during this run are saved, so pairs of
+ * documents that are gone are dropped.  Safe for use by several threads
+ * at once.
+ */
+public class SimilarityCache {
+	private final static int MAGIC = 0x47534343; // "GSCC"
+	private final static int VERSION = 1;
+
+	private File file;
+	private double threshold;
+	private ConcurrentHashMap<PairKey, Float> saved;
+	private ConcurrentHashMap<PairKey, Float> used;
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Load the cache file, if it exists and was written for the same threshold.
+	 * @param _file - cache file
+	 * @param _threshold - similarity threshold of this run
+	 * @throws IOException
+	 */
+	public SimilarityCache(File _file, double _threshold) throws IOException
+	{
+		file = _file;
+		threshold = _threshold;
+		saved = new ConcurrentHashMap<PairKey, Float>();
+		used = new ConcurrentHashMap<PairKey, Float>();
+		if (!file.isFile())
+		{
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readDouble() != threshold)
+			{
+				System.out.println("Notice: Ignoring similarity cache " + file + " from a different configuration");
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				PairKey key = new PairKey(in.readLong(), in.readInt(), in.readLong(), in.readInt());
+				saved.put(key, in.readFloat());
+			}
+		}
+		catch (EOFException e)
+		{
+			System.out.println("Warning: Similarity cache " + file + " is truncated");
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Look up the saved similarity of two documents.
+	 * @param d1 - one document
+	 * @param d2 - another document
+	 * @return saved similarity, or null if the pair has not been compared
+	 */
+	public Float get(NormalizedDocument d1, NormalizedDocument d2)
+	{
+		PairKey key = new PairKey(d1, d2);
+		Float score = saved.get(key);
+		if (score == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		used.put(key, score);
+		return score;
+	}
+
+	/**
+	 * Remember the similarity of two documents.
+	 * @param d1 - one document
+	 * @param d2 - another document
+	 * @param score - similarity
+	 */
+	public void put(NormalizedDocument d1, NormalizedDocument d2, float score)
+	{
+		used.put(new PairKey(d1, d2), score);
+	}
+
+	/**
+	 * Write the pairs used during this run to the cache file.
+	 * @throws IOException
+	 */
+	public void save() throws IOException
+	{
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+		{
+			throw new IOException("Could not create directory: " + parent.getAbsolutePath());
+		}
+		File tempFile = File.createTempFile(file.getName(), ".tmp", parent);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeDouble(threshold);
+			out.writeInt(used.size());
+			for (Map.Entry<PairKey, Float> e : used.entrySet())
+			{
+				PairKey key = e.getKey();
+				out.writeLong(key.hash1);
+				out.writeInt(key.length1);
+				out.writeLong(key.hash2);
+				out.writeInt(key.length2);
+				out.writeFloat(e.getValue());
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Describe how many lookups found a saved score.
+	 */
+	public String toString()
+	{
+		return String.format("%d pairs reused, %d pairs computed", hits.get(), misses.get());
+	}
+
+	/**
+	 * Unordered pair of document identities.
+	 */
+	private static class PairKey {
+		final long hash1;
+		final int length1;
+		final long hash2;
+		final int length2;
+
+		PairKey(NormalizedDocument d1, NormalizedDocument d2)
+		{
+			this(d1.getHash(), d1.length(), d2.getHash(), d2.length());
+		}
+
+		PairKey(long h1, int l1, long h2, int l2)
+		{
+			if (h1 > h2 || (h1 == h2 && l1 > l2))
+			{
+				long swapHash = h1; h1 = h2; h2 = swapHash;
+				int swapLength = l1; l1 = l2; l2 = swapLength;
+			}
+			hash1 = h1;
+			length1 = l1;
+			hash2 = h2;
+			length2 = l2;
+		}
+
+		public int hashCode()
+		{
+			long h = hash1 * 31 + hash2;
+			return (int) (h ^ (h >>> 32)) + length1 * 17 + length2;
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof PairKey))
+			{
+				return false;
+			}
+			PairKey k = (PairKey) o;
+			return hash1 == k.hash1 && length1 == k.length1 &&
+					hash2 == k.hash2 && length2 == k.length2;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * Groups of submissions connected by similar files.  Every pair of files
+ * at or above its similarity threshold is an edge of a graph over the
+ * students, and a union-find structure collects the connected students
+ * into clusters.  The clusters are ranked by their most similar pair for
+ * the report, and each student's own list of similar files is derived
+ * from the same edges, so the result does not depend on the order in
+ * which submissions are compared.
+ */
+public class SimilarityClusters {
+	private ArrayList<AssignmentResults> submissions;
+	private int[] parent;
+	private int[] rank;
+	private ArrayList<Edge> edges;
+	private ArrayList<ArrayList<Edge>> clusters;
+
+	/**
+	 * A pair of similar files in two submissions.
+	 */
+	private static class Edge {
+		final int student1;
+		final String file1;
+		final int student2;
+		final String file2;
+		final double score;
+		final boolean javaSource;
+
+		Edge(int _student1, String _file1, int _student2, String _file2, double _score, boolean _javaSource)
+		{
+			student1 = _student1;
+			file1 = _file1;
+			student2 = _student2;
+			file2 = _file2;
+			score = _score;
+			javaSource = _javaSource;
+		}
+	}
+
+	/**
+	 * Start with each submission in a cluster of its own.
+	 * @param _submissions - all submissions
+	 */
+	public SimilarityClusters(ArrayList<AssignmentResults> _submissions)
+	{
+		submissions = _submissions;
+		parent = new int[submissions.size()];
+		rank = new int[submissions.size()];
+		for (int i = 0; i < parent.length; i++)
+		{
+			parent[i] = i;
+		}
+		edges = new ArrayList<Edge>();
+	}
+
+	/**
+	 * Record a pair of similar files and join their students' clusters.
+	 * @param student1 - index of one submission
+	 * @param file1 - file in that submission
+	 * @param student2 - index of the other submission
+	 * @param file2 - file in the other submission
+	 * @param score - similarity of the files
+	 * @param javaSource - true if the files are Java sources compared by fingerprints
+	 */
+	public void addEdge(int student1, String file1, int student2, String file2, double score, boolean javaSource)
+	{
+		edges.add(new Edge(student1, file1, student2, file2, score, javaSource));
+		union(student1, student2);
+		clusters = null;
+	}
+
+	/**
+	 * Get the number of clusters with more than one student.
+	 * @return number of clusters
+	 */
+	public int getClusterCount()
+	{
+		return getClusters().size();
+	}
+
+	/**
+	 * Set each submission's closest other submitted files and similar Java
+	 * files to all of the edges involving it.
+	 */
+	public void fillSubmissions()
+	{
+		ArrayList<TreeMap<String, Double>> documents = new ArrayList<TreeMap<String, Double>>();
+		ArrayList<TreeMap<String, Double>> sources = new ArrayList<TreeMap<String, Double>>();
+		for (int i = 0; i < submissions.size(); i++)
+		{
+			documents.add(new TreeMap<String, Double>());
+			sources.add(new TreeMap<String, Double>());
+		}
+		for (Edge e : edges)
+		{
+			ArrayList<TreeMap<String, Double>> views = e.javaSource ? sources : documents;
+			views.get(e.student1).put(e.file1 + ":" + name(e.student2) + ":" + e.file2, e.score);
+			views.get(e.student2).put(e.file2 + ":" + name(e.student1) + ":" + e.file1, e.score);
+		}
+		for (int i = 0; i < submissions.size(); i++)
+		{
+			submissions.get(i).setClosestOtherSubmittedFiles(documents.get(i));
+			submissions.get(i).setClosestOtherJavaFiles(sources.get(i));
+		}
+	}
+
+	/**
+	 * Describe the clusters, most similar first, with the pairs of files
+	 * that connect each cluster.
+	 */
+	public String toString()
+	{
+		StringBuffer r = new StringBuffer();
+		ArrayList<ArrayList<Edge>> ranked = getClusters();
+		r.append("Groups of similar submissions: " + ranked.size() + "\n");
+		int group = 0;
+		for (ArrayList<Edge> cluster : ranked)
+		{
+			group++;
+			TreeMap<String, Integer> students = new TreeMap<String, Integer>();
+			for (Edge e : cluster)
+			{
+				students.put(name(e.student1), e.student1);
+				students.put(name(e.student2), e.student2);
+			}
+			r.append(String.format("Group %d: %d students, highest %.2f%%\n", group, students.size(), cluster.get(0).score * 100.0));
+			for (String student : students.keySet())
+			{
+				r.append("\t" + student + "\n");
+			}
+			for (Edge e : cluster)
+			{
+				r.append(String.format("\t%s:%s <-> %s:%s: %.2f%%%s\n", name(e.student1), e.file1,
+						name(e.student2), e.file2, e.score * 100.0, e.javaSource ? " (Java)" : ""));
+			}
+		}
+		return r.toString();
+	}
+
+	/**
+	 * Collect the edges of each cluster, sorted by descending score, and
+	 * rank the clusters by their highest score and then by size.
+	 */
+	private ArrayList<ArrayList<Edge>> getClusters()
+	{
+		if (clusters != null)
+		{
+			return clusters;
+		}
+		HashMap<Integer, ArrayList<Edge>> byRoot = new HashMap<Integer, ArrayList<Edge>>();
+		for (Edge e : edges)
+		{
+			int root = find(e.student1);
+			ArrayList<Edge> cluster = byRoot.get(root);
+			if (cluster == null)
+			{
+				cluster = new ArrayList<Edge>();
+				byRoot.put(root, cluster);
+			}
+			cluster.add(e);
+		}
+		final Comparator<Edge> byScore = new Comparator<Edge>() {
+			public int compare(Edge a, Edge b)
+			{
+				int c = Double.compare(b.score, a.score);
+				if (c == 0)
+				{
+					c = name(a.student1).compareTo(name(b.student1));
+				}
+				if (c == 0)
+				{
+					c = name(a.student2).compareTo(name(b.student2));
+				}
+				return c;
+			}
+		};
+		clusters = new ArrayList<ArrayList<Edge>>(byRoot.values());
+		for (ArrayList<Edge> cluster : clusters)
+		{
+			Collections.sort(cluster, byScore);
+		}
+		Collections.sort(clusters, new Comparator<ArrayList<Edge>>() {
+			public int compare(ArrayList<Edge> a, ArrayList<Edge> b)
+			{
+				int c = Double.compare(b.get(0).score, a.get(0).score);
+				if (c == 0)
+				{
+					c = b.size() - a.size();
+				}
+				if (c == 0)
+				{
+					c = byScore.compare(a.get(0), b.get(0));
+				}
+				return c;
+			}
+		});
+		return clusters;
+	}
+
+	private String name(int student)
+	{
+		return submissions.get(student).getName();
+	}
+
+	/**
+	 * Find the representative of a student's cluster, compressing the path.
+	 */
+	private int find(int i)
+	{
+		int root = i;
+		while (parent[root] != root)
+		{
+			root = parent[root];
+		}
+		while (parent[i] != root)
+		{
+			int next = parent[i];
+			parent[i] = root;
+			i = next;
+		}
+		return root;
+	}
+
+	/**
+	 * Join two students' clusters, by rank.
+	 */
+	private void union(int i, int j)
+	{
+		int a = find(i);
+		int b = find(j);
+		if (a == b)
+		{
+			return;
+		}
+		if (rank[a] < rank[b])
+		{
+			int swap = a; a = b; b = swap;
+		}
+		parent[b] = a;
+		if (rank[a] == rank[b])
+		{
+			rank[a]++;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cheap tests that settle most document pairs before the edit distance
+ * is computed.  In order:
+ *   - documents with the same contents score 1.0 right away;
+ *   - since the edit distance is at least the difference in lengths, the
+ *     similarity is at most shorter / longer, which may already be below
+ *     the threshold;
+ *   - each edit destroys at most q of the q-grams of a string (the q-gram
+ *     lemma), so two strings within edit distance k share at least
+ *     max(n, m) - q + 1 - k * q q-grams, and fewer shared q-grams prove
+ *     the similarity is below the threshold.
+ * Only pairs that pass all the tests get StringSimilarity.similarity.
+ * The number of pairs settled by each test is counted.  Safe for use by
+ * several threads at once.
+ */
+public class SimilarityFilter {
+	private AtomicLong pairs = new AtomicLong();
+	private AtomicLong exactDuplicates = new AtomicLong();
+	private AtomicLong lengthRejected = new AtomicLong();
+	private AtomicLong qgramRejected = new AtomicLong();
+	private AtomicLong compared = new AtomicLong();
+
+	/**
+	 * Calculate the similarity between two documents, as
+	 * StringSimilarity.similarity does, using the cheap tests first.
+	 * @param d1 - one document
+	 * @param d2 - another document
+	 * @param threshold - smallest similarity of interest (0 to 1)
+	 * @return Similarity measure (0 to 1), or a value below the threshold
+	 *  if the documents are less similar than the threshold
+	 */
+	public double similarity(NormalizedDocument d1, NormalizedDocument d2, double threshold)
+	{
+		pairs.incrementAndGet();
+		if (d1.equals(d2))
+		{
+			exactDuplicates.incrementAndGet();
+			return 1.0;
+		}
+		int longer = Math.max(d1.length(), d2.length());
+		int shorter = Math.min(d1.length(), d2.length());
+		if (shorter < threshold * longer)
+		{
+			lengthRejected.incrementAndGet();
+			return 0.0;
+		}
+		int maxDistance = StringSimilarity.maxDistance(longer, threshold);
+		long neededQGrams = (long) longer - NormalizedDocument.QGRAM_SIZE + 1 - (long) maxDistance * NormalizedDocument.QGRAM_SIZE;
+		if (neededQGrams > 0 && sharedQGrams(d1.getQGrams(), d2.getQGrams(), neededQGrams) < neededQGrams)
+		{
+			qgramRejected.incrementAndGet();
+			return 0.0;
+		}
+		compared.incrementAndGet();
+		return StringSimilarity.similarity(d1, d2, threshold);
+	}
+
+	/**
+	 * Count the q-grams two documents have in common (with repeats),
+	 * stopping early once the count is known to reach the needed number
+	 * or to fall short of it.
+	 */
+	private static long sharedQGrams(long[] q1, long[] q2, long needed)
+	{
+		long shared = 0;
+		int i = 0;
+		int j = 0;
+		while (i < q1.length && j < q2.length)
+		{
+			if (shared >= needed)
+			{
+				return shared;
+			}
+			if (shared + Math.min(q1.length - i, q2.length - j) < needed)
+			{
+				return shared;
+			}
+			if (q1[i] < q2[j])
+			{
+				i++;
+			}
+			else if (q1[i] > q2[j])
+			{
+				j++;
+			}
+			else
+			{
+				shared++;
+				i++;
+				j++;
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Describe how many pairs each test settled.
+	 */
+	public String toString()
+	{
+		return String.format("%d pairs checked: %d exact duplicates, %d ruled out by length, " +
+				"%d ruled out by q-grams, %d compared by edit distance",
+				pairs.get(), exactDuplicates.get(), lengthRejected.get(),
+				qgramRejected.get(), compared.get());
+	}
+}
@@ -0,0 +1,249 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Similarity scores between the text documents of all submissions.
+ * Each unordered pair of documents from different students is compared
+ * once, in parallel on a ForkJoinPool, and the scores are kept in a
+ * lower-triangular float array.  With a MinHashIndex, each row only
+ * visits the document's candidates instead of every earlier document.  The pairs at or above the threshold
+ * become the edges of the SimilarityClusters.
+ */
+public class SimilarityMatrix {
+	/* Rows per fork-join task; rows are short near the top of the triangle. */
+	private final static int ROWS_PER_TASK = 4;
+
+	private ArrayList<AssignmentResults> submissions;
+	private double threshold;
+	private MinHashIndex index;
+	private int[] owners;
+	private String[] keys;
+	private String[] documentKeys;
+	private HashMap<String, Integer> positions;
+	private NormalizedDocument[] documents;
+	private float[] scores;
+	private SimilarityFilter filter;
+	private SimilarityCache cache;
+
+	/**
+	 * Collect the comparable documents of the submissions.
+	 * @param _submissions - all submissions
+	 * @param _threshold - smallest similarity of interest
+	 * @param _index - candidate pairs to compare, or null to compare all pairs
+	 */
+	public SimilarityMatrix(ArrayList<AssignmentResults> _submissions, double _threshold, MinHashIndex _index)
+	{
+		submissions = _submissions;
+		threshold = _threshold;
+		index = _index;
+		ArrayList<Integer> ownerList = new ArrayList<Integer>();
+		ArrayList<String> keyList = new ArrayList<String>();
+		ArrayList<NormalizedDocument> documentList = new ArrayList<NormalizedDocument>();
+		for (int s = 0; s < submissions.size(); s++)
+		{
+			for (Map.Entry<String, NormalizedDocument> doc : submissions.get(s).getComparableDocuments().entrySet())
+			{
+				ownerList.add(s);
+				keyList.add(doc.getKey());
+				documentList.add(doc.getValue());
+			}
+		}
+		int n = keyList.size();
+		long cells = (long) n * (n - 1) / 2;
+		if (cells > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Too many documents (" + n + ") for a similarity matrix");
+		}
+		owners = new int[n];
+		keys = new String[n];
+		documentKeys = new String[n];
+		positions = new HashMap<String, Integer>();
+		documents = new NormalizedDocument[n];
+		for (int i = 0; i < n; i++)
+		{
+			owners[i] = ownerList.get(i);
+			keys[i] = keyList.get(i);
+			documentKeys[i] = submissions.get(owners[i]).getDocumentKey(keys[i]);
+			positions.put(documentKeys[i], i);
+			documents[i] = documentList.get(i);
+		}
+		scores = new float[(int) cells];
+		filter = new SimilarityFilter();
+	}
+
+	/**
+	 * Get the number of documents in the matrix.
+	 * @return number of documents
+	 */
+	public int size()
+	{
+		return keys.length;
+	}
+
+	/**
+	 * Get the filter cascade used ahead of the edit distance, with its
+	 * counts of the pairs settled by each test.
+	 * @return filter
+	 */
+	public SimilarityFilter getFilter()
+	{
+		return filter;
+	}
+
+	/**
+	 * Use saved scores from earlier runs, and save the scores computed.
+	 * @param _cache - pairwise score cache, or null for none
+	 */
+	public void setCache(SimilarityCache _cache)
+	{
+		cache = _cache;
+	}
+
+	/**
+	 * Get the similarity between two documents.
+	 * @param i - one document
+	 * @param j - another document
+	 * @return similarity, or 0 if below the threshold or not compared
+	 */
+	public double getScore(int i, int j)
+	{
+		if (i == j)
+		{
+			return 1.0;
+		}
+		return scores[cell(i, j)];
+	}
+
+	/**
+	 * Compare every pair of documents from different students using
+	 * all of the available processors.
+	 */
+	public void compute()
+	{
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try
+		{
+			pool.invoke(new RowsTask(0, keys.length));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Add every pair of documents at or above the threshold to the clusters.
+	 * Submissions are numbered by their position in the submissions list.
+	 * @param clusters - clusters of similar submissions
+	 */
+	public void addEdgesTo(SimilarityClusters clusters)
+	{
+		for (int i = 1; i < keys.length; i++)
+		{
+			int base = cell(i, 0);
+			for (int j = 0; j < i; j++)
+			{
+				float score = scores[base + j];
+				if (score > 0.0f && score >= threshold)
+				{
+					clusters.addEdge(owners[j], keys[j], owners[i], keys[i], score, false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compute one row of the lower triangle.
+	 * @param i - row
+	 */
+	private void computeRow(int i)
+	{
+		if (index == null)
+		{
+			for (int j = 0; j < i; j++)
+			{
+				comparePair(i, j);
+			}
+			return;
+		}
+		for (String candidate : index.getCandidates(documentKeys[i]))
+		{
+			Integer j = positions.get(candidate);
+			if (j != null && j < i)
+			{
+				comparePair(i, j);
+			}
+		}
+	}
+
+	/**
+	 * Compare two documents, unless they belong to the same student.
+	 * @param i - row
+	 * @param j - earlier document
+	 */
+	private void comparePair(int i, int j)
+	{
+		if (owners[i] == owners[j])
+		{
+			return;
+		}
+		int c = cell(i, j);
+		Float cached = cache == null ? null : cache.get(documents[i], documents[j]);
+		if (cached != null)
+		{
+			scores[c] = cached;
+			return;
+		}
+		double score = filter.similarity(documents[i], documents[j], threshold);
+		scores[c] = score >= threshold ? (float) score : 0.0f;
+		if (cache != null)
+		{
+			cache.put(documents[i], documents[j], scores[c]);
+		}
+	}
+
+	/**
+	 * Find the position of a pair in the lower-triangular array.
+	 */
+	private static int cell(int i, int j)
+	{
+		if (i < j)
+		{
+			int swap = i; i = j; j = swap;
+		}
+		return (int) ((long) i * (i - 1) / 2) + j;
+	}
+
+	/**
+	 * Fork-join task computing a range of rows.
+	 */
+	private class RowsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private int from;
+		private int to;
+
+		RowsTask(int _from, int _to)
+		{
+			from = _from;
+			to = _to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from <= ROWS_PER_TASK)
+			{
+				for (int i = from; i < to; i++)
+				{
+					computeRow(i);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new RowsTask(from, middle), new RowsTask(middle, to));
+		}
+	}
+}
@@ -1,19 +1,25 @@
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
 
 /**
  * Copy an InputStream to an OutputStream using a thread.
+ * The thread belongs to a run's RunScope, so that it ends with the run,
+ * and is a virtual thread when the JVM has them.
  * Inspired by code from mysql.
  * 
  * @author ghelmer
  *
  */
-public class StreamConnector extends Thread {
+public class StreamConnector implements Runnable {
     private static int count = 0;
 
+    private String name;
+
     private InputStream from;
     private OutputStream to;
     private boolean closeFrom;
@@ -27,7 +33,7 @@ public class StreamConnector extends Thread {
      * @param name - identifying information about the stream
      */
     public StreamConnector(InputStream from, OutputStream to, String name) {
-        super("StreamConnector " + count() + ": " + name);
+        this.name = "StreamConnector " + count() + ": " + name;
         this.from = from;
         this.to = to;
         closeFrom = false;
@@ -44,7 +50,7 @@ public class StreamConnector extends Thread {
      */
     public StreamConnector(InputStream from, OutputStream to,
     		boolean closeFrom, boolean closeTo, String name) {
-        super("StreamConnector " + count() + ": " + name);
+        this.name = "StreamConnector " + count() + ": " + name;
         this.from = from;
         this.to = to;
         this.closeFrom = closeFrom;
@@ -57,11 +63,20 @@ public class StreamConnector extends Thread {
     public void run() {
         new Exceptions.VoidBlock() {
             public void inner() throws Exception {
-                Streams.copy(from, to, false, true, closeFrom, closeTo);
+                Streams.copy(from, to, true, closeFrom, closeTo);
             }
         }.exec();
     }
 
+    /**
+     * Start copying in a thread of a run's scope, which cancels the
+     * copy if it has not finished when the run ends.
+     * @param scope - scope of the run
+     */
+    public void start(RunScope scope) {
+        scope.fork(this, name);
+    }
+
     /**
      * Assign a monotonic number to each instance of the StreamConnector.
      */
@@ -71,39 +86,34 @@ public class StreamConnector extends Thread {
 
     /**
      * Copy from an InputStream to an OutputStream.
+     * Data is moved in blocks through buffers taken from a small shared
+     * pool, and file-to-file copies are handed to the operating system
+     * with FileChannel.transferTo.  Output is not limited here; streams
+     * that must be capped write to a CappedOutputStream.
      * @author ghelmer
      *
      */
     public static final class Streams {
     	public static final String RESOURCE_SEPARATOR = "/";
+    	public static final int BUFFER_SIZE = 8192;
     	private static final int END_OF_STREAM = -1;
+    	private static final int POOL_SIZE = 32;
+    	private static final ArrayBlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<byte[]>(POOL_SIZE);
 
     	public static void copy(InputStream from, OutputStream to) throws IOException {
-    		copy(from, to, true, false);
+    		copy(from, to, false);
     	}
-    	public static void copy(InputStream from, OutputStream to, boolean buffer,
+    	public static void copy(InputStream from, OutputStream to,
     			boolean terminateOnFailure) throws IOException {
-    		copy(from, to, buffer, terminateOnFailure, false, false);
+    		copy(from, to, terminateOnFailure, false, false);
     	}
-    	static void copy(InputStream from, OutputStream to, boolean buffer,
+    	static void copy(InputStream from, OutputStream to,
     			boolean terminateOnFailure, boolean closeFrom,
     			boolean closeTo) throws IOException {
-    		if (buffer) {
-    			from = new BufferedInputStream(from);
-    			to = new BufferedOutputStream(to);
-    		}
-    		while (true) {
-    			int i;
-    			try {
-    				i = from.read();
-    				if (i == END_OF_STREAM) {
-    					break;
-    				}
-    				to.write(i);
-    			} catch (Exception e) {
-    				if (terminateOnFailure) {
-    					break;
-    				}
+    		try {
+    			copyBlocks(from, to);
+    		} catch (Exception e) {
+    			if (!terminateOnFailure) {
     				if (e instanceof IOException) {
     					throw (IOException) e;
     				}
@@ -118,5 +128,66 @@ public class StreamConnector extends Thread {
     			to.close();
     		}
     	}
+
+    	/**
+    	 * Copy a stream to the end, a block at a time, or with
+    	 * transfer() when both streams are files.
+    	 * @param from - input stream
+    	 * @param to - output stream
+    	 * @throws IOException
+    	 */
+    	private static void copyBlocks(InputStream from, OutputStream to) throws IOException {
+    		if (from instanceof FileInputStream && to instanceof FileOutputStream) {
+    			transfer(((FileInputStream) from).getChannel(),
+    					((FileOutputStream) to).getChannel());
+    			return;
+    		}
+    		byte[] buf = acquireBuffer();
+    		try {
+    			while (true) {
+    				int n = from.read(buf, 0, buf.length);
+    				if (n == END_OF_STREAM) {
+    					break;
+    				}
+    				to.write(buf, 0, n);
+    			}
+    		} finally {
+    			releaseBuffer(buf);
+    		}
+    	}
+
+    	/**
+    	 * Copy the rest of one file channel to another.
+    	 * @return number of bytes copied
+    	 */
+    	static long transfer(FileChannel from, FileChannel to) throws IOException {
+    		long position = from.position();
+    		long size = from.size();
+    		long copied = 0;
+    		while (position + copied < size) {
+    			long n = from.transferTo(position + copied, size - position - copied, to);
+    			if (n <= 0) {
+    				break;
+    			}
+    			copied += n;
+    		}
+    		from.position(position + copied);
+    		return copied;
+    	}
+
+    	/**
+    	 * Take a copy buffer from the pool, or make one if the pool is empty.
+    	 */
+    	static byte[] acquireBuffer() {
+    		byte[] buf = bufferPool.poll();
+    		return buf != null ? buf : new byte[BUFFER_SIZE];
+    	}
+
+    	/**
+    	 * Return a copy buffer to the pool, unless the pool is full.
+    	 */
+    	static void releaseBuffer(byte[] buf) {
+    		bufferPool.offer(buf);
+    	}
     }
- }
\ No newline at end of file
+ }
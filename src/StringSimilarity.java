@@ -2,11 +2,15 @@
  * Compute the similarity between two strings based on the length
  * of the longest string and the Levenshtein Edit Distance.
  * Not very efficient when used to compare a large number of
- * large strings.
+ * large strings, unless a similarity threshold is given so that
+ * the bounded edit distance can give up early on dissimilar strings.
  * Implementation by acdcjunior on StackOverflow.
  */
 public class StringSimilarity
 {
+  /* Approximate cost of one bit-parallel word update, in banded cells. */
+  private static final long BIT_PARALLEL_WORD_COST = 12;
+
   /**
    * Calculates the similarity (a number within 0 and 1) between two strings, ignoring
    * whitespace and punctuation.
@@ -15,62 +19,179 @@ public class StringSimilarity
    * @return Similarity measure (0 to 1)
    */
   public static double similarity(String s1, String s2) {
-    String longer = s1.replaceAll("(\\p{Space}|\\p{Punct})+", ""), shorter = s2.replaceAll("(\\p{Space}|\\p{Punct})++", "");
-    if (s1.length() < s2.length()) { // longer should always have greater length
-      longer = s2; shorter = s1;
+    return similarity(s1, s2, 0.0);
+  }
+
+  /**
+   * Calculates the similarity (a number within 0 and 1) between two strings, ignoring
+   * whitespace and punctuation, giving up as soon as it is known that the
+   * similarity will be below the threshold.
+   * @param s1 - one string
+   * @param s2 - another string
+   * @param threshold - smallest similarity of interest (0 to 1)
+   * @return Similarity measure (0 to 1), or a value below the threshold
+   *  if the strings are less similar than the threshold
+   */
+  public static double similarity(String s1, String s2, double threshold) {
+    return similarity(new NormalizedDocument(s1), new NormalizedDocument(s2), threshold);
+  }
+
+  /**
+   * Calculates the similarity (a number within 0 and 1) between two documents
+   * that have already been normalized, giving up as soon as it is known that
+   * the similarity will be below the threshold.
+   * @param d1 - one document
+   * @param d2 - another document
+   * @param threshold - smallest similarity of interest (0 to 1)
+   * @return Similarity measure (0 to 1), or a value below the threshold
+   *  if the documents are less similar than the threshold
+   */
+  public static double similarity(NormalizedDocument d1, NormalizedDocument d2, double threshold) {
+    NormalizedDocument longer = d1, shorter = d2;
+    if (longer.length() < shorter.length()) { // longer should always have greater length
+      longer = d2; shorter = d1;
     }
     int longerLength = longer.length();
     if (longerLength == 0) { return 1.0; /* both strings are zero length */ }
-    if (shorter.length() == 0) { return 0.0; /* shorter string is completely different. */ } 
-    /* // If you have StringUtils, you can use it to calculate the edit distance:
-    return (longerLength - StringUtils.getLevenshteinDistance(longer, shorter)) /
-                               (double) longerLength; */
-    return (longerLength - editDistance(longer, shorter)) / (double) longerLength;
+    if (shorter.length() == 0) { return 0.0; /* shorter string is completely different. */ }
+    int maxDistance = maxDistance(longerLength, threshold);
+    if (maxDistance < 0) {
+      return 0.0; /* a threshold above 1 cannot be reached */
+    }
+    int distance = boundedEditDistance(longer.getChars(), longerLength, shorter.getChars(), shorter.length(), maxDistance);
+    if (distance > maxDistance) {
+      return 0.0;
+    }
+    return (longerLength - distance) / (double) longerLength;
+  }
+
+  /**
+   * Compute the largest edit distance that still gives at least the
+   * threshold similarity for strings whose longer length is given.
+   * @param longerLength - length of the longer string
+   * @param threshold - smallest similarity of interest (0 to 1)
+   * @return maximum edit distance of interest
+   */
+  static int maxDistance(int longerLength, double threshold) {
+    if (threshold <= 0.0) {
+      return longerLength;
+    }
+    return (int) Math.floor((1.0 - threshold) * longerLength + 1e-9);
+  }
+
+  /**
+   * Compute the bounded edit distance with whichever engine is cheaper:
+   * the banded computation touches about (2 * maxDistance + 1) cells per
+   * character, while the bit-parallel one (BitParallelEditDistance)
+   * updates one 64-bit word per 64 characters of the shorter string.
+   * @param a - one string
+   * @param n - number of characters of a to use
+   * @param b - another string
+   * @param m - number of characters of b to use
+   * @param maxDistance - largest edit distance of interest
+   * @return Edit distance, or maxDistance + 1 if it exceeds maxDistance
+   */
+  static int boundedEditDistance(char[] a, int n, char[] b, int m, int maxDistance) {
+    long bandCells = 2L * maxDistance + 1;
+    long bitParallelCells = BIT_PARALLEL_WORD_COST * ((Math.min(n, m) + 63) / 64);
+    if (bandCells <= bitParallelCells) {
+      return editDistance(a, n, b, m, maxDistance);
+    }
+    return BitParallelEditDistance.editDistance(a, n, b, m, maxDistance);
   }
 
   /**
    * Example implementation of the Levenshtein Edit Distance
    * (minimum number of single-character edits [insertions,
    * deletions or substitutions]) required to change one string
-   * into another.
+   * into another.  Comparison ignores case.
    * @param s1 - one string
    * @param s2 - another string
    * @return Edit distance between strings
    */
   // See http://rosettacode.org/wiki/Levenshtein_distance#Java
   public static int editDistance(String s1, String s2) {
-    //s1 = s1.toLowerCase();
-    s2 = s2.toLowerCase();
+    return editDistance(s1, s2, Math.max(s1.length(), s2.length()));
+  }
+
+  /**
+   * Compute the Levenshtein Edit Distance between two strings if it is
+   * no more than maxDistance.  Only a diagonal band of width
+   * 2 * maxDistance + 1 is computed, and the computation stops as soon
+   * as every entry in the band exceeds maxDistance.  Comparison ignores case.
+   * @param s1 - one string
+   * @param s2 - another string
+   * @param maxDistance - largest edit distance of interest
+   * @return Edit distance between strings, or maxDistance + 1 if the
+   *  distance is greater than maxDistance
+   */
+  public static int editDistance(String s1, String s2, int maxDistance) {
+    char[] a = s1.toLowerCase().toCharArray();
+    char[] b = s2.toLowerCase().toCharArray();
+    return editDistance(a, a.length, b, b.length, maxDistance);
+  }
 
-    int[] costs = new int[s2.length() + 1];
-    for (int i = 0; i < s1.length(); i++)
-    {
-      int lastValue = i;
-      char s1Char = Character.toLowerCase(s1.charAt(i));
-      for (int j = 0; j < s2.length(); j++)
-      {
-        if (i == 0)
-        {
-          costs[j] = j;
+  /**
+   * Banded Levenshtein Edit Distance over character arrays.
+   * @param a - one string
+   * @param n - number of characters of a to use
+   * @param b - another string
+   * @param m - number of characters of b to use
+   * @param maxDistance - largest edit distance of interest
+   * @return Edit distance, or maxDistance + 1 if it exceeds maxDistance
+   * @throws IllegalArgumentException if maxDistance is negative
+   */
+  static int editDistance(char[] a, int n, char[] b, int m, int maxDistance) {
+    if (maxDistance < 0) {
+      throw new IllegalArgumentException("Negative maximum edit distance: " + maxDistance);
+    }
+    if (Math.abs(n - m) > maxDistance) {
+      return maxDistance + 1; /* length difference alone is too large */
+    }
+    if (n == 0 || m == 0) {
+      return Math.max(n, m);
+    }
+    final int over = maxDistance + 1;
+    int[] costs = new int[m + 1];
+    int[] previous = new int[m + 1];
+    for (int j = 0; j <= m; j++) {
+      previous[j] = j <= maxDistance ? j : over;
+    }
+    for (int i = 1; i <= n; i++) {
+      int from = Math.max(1, i - maxDistance);
+      int to = Math.min(m, i + maxDistance);
+      char aChar = a[i - 1];
+      costs[0] = i <= maxDistance ? i : over;
+      if (from > 1) {
+        costs[from - 1] = over; /* left edge of the band */
+      }
+      int bandMinimum = costs[from - 1];
+      for (int j = from; j <= to; j++) {
+        int cost = previous[j - 1] + (aChar == b[j - 1] ? 0 : 1);
+        int deletion = previous[j] + 1;
+        if (deletion < cost) {
+          cost = deletion;
+        }
+        int insertion = costs[j - 1] + 1;
+        if (insertion < cost) {
+          cost = insertion;
         }
-        else
-        {
-          if (j > 0)
-          {
-            int newValue = costs[j - 1];
-            if (s1Char != s2.charAt(j - 1))
-              newValue = Math.min(Math.min(newValue, lastValue),
-                  costs[j]) + 1;
-            costs[j - 1] = lastValue;
-            lastValue = newValue;
-          }
+        if (cost > over) {
+          cost = over;
         }
+        costs[j] = cost;
+        if (cost < bandMinimum) {
+          bandMinimum = cost;
+        }
+      }
+      if (to < m) {
+        costs[to + 1] = over; /* right edge of the band */
       }
-      if (i > 0)
-      {
-        costs[s2.length() - 1] = lastValue;
+      if (bandMinimum > maxDistance) {
+        return over; /* every path already costs too much */
       }
+      int[] swap = previous; previous = costs; costs = swap;
     }
-    return costs[s2.length() - 1];
+    return Math.min(previous[m], over);
   }
-}
\ No newline at end of file
+}
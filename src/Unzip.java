@@ -1,5 +1,4 @@
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -9,7 +8,6 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 public class Unzip {
-	final static int BUFFER = 2048;
 
 	/**
 	 * Unzip a zip archive file into a directory by the same
@@ -35,7 +33,6 @@ public class Unzip {
 		 * From:
 		 * http://java.sun.com/developer/technicalArticles/Programming/compression/
 		 */
-		BufferedOutputStream dest = null;
 		FileInputStream fis = new 
 				FileInputStream(f);
 		ZipInputStream zis = new 
@@ -54,8 +51,6 @@ public class Unzip {
 			else
 			{
 				//System.out.println("Extracting: " +entry);
-				int count;
-				byte data[] = new byte[BUFFER];
 				// write the files to the disk
 				String newFileName = subdir + File.separator + entry.getName();
 				if (!entry.getName().startsWith("."))
@@ -64,14 +59,15 @@ public class Unzip {
 				}
 				File newFile = new File(f.getParent() + File.separator + newFileName);
 				newFile.getParentFile().mkdirs();
-				FileOutputStream fos = new FileOutputStream(newFile);
-				dest = new 
-						BufferedOutputStream(fos, BUFFER);
-				while ((count = zis.read(data, 0, BUFFER)) != -1) {
-					dest.write(data, 0, count);
+				FileOutputStream dest = new FileOutputStream(newFile);
+				try
+				{
+					StreamConnector.Streams.copy(zis, dest);
+				}
+				finally
+				{
+					dest.close();
 				}
-				dest.flush();
-				dest.close();
 			}
 		}
 		zis.close();
@@ -0,0 +1,344 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops child processes that run too long.  One scheduler thread is
+ * shared by every run of the grading program, instead of a Timer thread
+ * for each run.  When a run's time is up, the process and all of its
+ * descendants are asked to stop with destroy(), and any that are still
+ * alive after DESTROY_GRACE_MILLIS are killed with destroyForcibly(),
+ * so programs that start processes of their own do not leave them
+ * running.
+ *
+ * While watching, the watchdog also samples the process's CPU time and,
+ * on Linux, its peak resident memory (VmHWM in /proc/<pid>/status) every
+ * USAGE_SAMPLE_MILLIS, for the run's RunStats.  Samples are taken by a
+ * second shared thread, so that reading /proc for many processes does
+ * not delay stopping a process whose time is up.  Each sample also records
+ * the process's descendants, since they can no longer be found from the
+ * process once it has exited: whichever of them are still alive when
+ * the watchdog is cancelled or stops the process are stopped too, so a
+ * program that exits on its own does not leave processes behind.
+ * Processes started and orphaned between two samples are not seen.
+ * No sample can be taken once the process has exited, so the CPU time
+ * of a run that ended before its second sample is unknown.
+ */
+public class Watchdog {
+	public final static long DESTROY_GRACE_MILLIS = 2000;
+	public final static long OUTPUT_CHECK_MILLIS = 100;
+	public final static long USAGE_SAMPLE_MILLIS = 50;
+
+	private final static ScheduledExecutorService scheduler = newScheduler("Watchdog");
+	private final static ScheduledExecutorService sampler = newScheduler("Watchdog usage sampler");
+
+	private Process process;
+	private ScheduledFuture<?> timeout;
+	private volatile ScheduledFuture<?> sizeCheck;
+	private volatile boolean timedOut;
+	private ScheduledFuture<?> usageSample;
+	private long cpuStartNanos = RunStats.UNKNOWN;
+	private long cpuNanos = RunStats.UNKNOWN;
+	private int cpuSamples;
+	private long peakMemoryKb = RunStats.UNKNOWN;
+	private HashSet<ProcessHandle> descendants = new HashSet<ProcessHandle>();
+
+	/**
+	 * Start watching a process.
+	 * @param _process - process to stop when its time is up
+	 * @param timeoutMillis - time allowed for the process
+	 */
+	private Watchdog(Process _process, long timeoutMillis)
+	{
+		process = _process;
+		sampleUsage();
+		timeout = scheduler.schedule(new Runnable() {
+			public void run()
+			{
+				expire();
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+		usageSample = sampler.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				sampleUsage();
+			}
+		}, USAGE_SAMPLE_MILLIS, USAGE_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Create a scheduler with a single daemon thread.
+	 * @param threadName - name of the thread
+	 */
+	private static ScheduledExecutorService newScheduler(final String threadName)
+	{
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, threadName);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Stop a process and its descendants if it is still running after
+	 * the given time.  Call cancel() when the process has finished.
+	 * @param process - process to watch
+	 * @param timeoutMillis - time allowed for the process
+	 * @return watchdog for the process
+	 */
+	public static Watchdog watch(Process process, long timeoutMillis)
+	{
+		return new Watchdog(process, timeoutMillis);
+	}
+
+	/**
+	 * Also stop the process if any of the given files grows past a size,
+	 * checking every OUTPUT_CHECK_MILLIS.  Used when a process's output is
+	 * redirected to files, where there is no stream to count it.
+	 * @param files - files receiving the process's output
+	 * @param limit - largest size allowed for each file
+	 */
+	public void limitFileSize(final File[] files, final long limit)
+	{
+		sizeCheck = scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				for (File f : files)
+				{
+					if (f.length() > limit)
+					{
+						stop();
+						return;
+					}
+				}
+			}
+		}, OUTPUT_CHECK_MILLIS, OUTPUT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop watching the process, and stop any of its descendants that
+	 * are still running.  The process itself is left running.
+	 */
+	public void cancel()
+	{
+		cancelChecks();
+		kill(false);
+	}
+
+	/**
+	 * Determine whether the process was stopped for running too long.
+	 * @return true if the time ran out
+	 */
+	public boolean isTimedOut()
+	{
+		return timedOut;
+	}
+
+	/**
+	 * Get the CPU time used by the process since it was first watched,
+	 * up to the last sample taken while it was alive.
+	 * @return milliseconds, or RunStats.UNKNOWN if fewer than two samples
+	 *  were taken
+	 */
+	public synchronized long getCpuMillis()
+	{
+		if (cpuSamples < 2)
+		{
+			return RunStats.UNKNOWN;
+		}
+		return TimeUnit.NANOSECONDS.toMillis(cpuNanos - cpuStartNanos);
+	}
+
+	/**
+	 * Get the peak resident memory of the process.
+	 * @return kilobytes, or RunStats.UNKNOWN
+	 */
+	public synchronized long getPeakMemoryKb()
+	{
+		return peakMemoryKb;
+	}
+
+	/**
+	 * Stop the process and its descendants now, as when its time is up.
+	 */
+	public void stop()
+	{
+		cancelChecks();
+		kill(true);
+	}
+
+	/**
+	 * Take a last sample, and cancel the scheduled checks.
+	 */
+	private void cancelChecks()
+	{
+		sampleUsage();
+		usageSample.cancel(false);
+		timeout.cancel(false);
+		if (sizeCheck != null)
+		{
+			sizeCheck.cancel(false);
+		}
+	}
+
+	/**
+	 * Stop the process tree when the time is up.
+	 */
+	private void expire()
+	{
+		if (process.isAlive())
+		{
+			timedOut = true;
+			kill(true);
+		}
+	}
+
+	/**
+	 * Ask the process's descendants, and the process itself if asked, to
+	 * stop, and schedule killing whatever is left.
+	 * @param killProcess - whether to stop the process as well
+	 */
+	private void kill(boolean killProcess)
+	{
+		final List<ProcessHandle> tree = new ArrayList<ProcessHandle>();
+		synchronized (this)
+		{
+			/* Collect the descendants first; they are reparented when the process dies. */
+			addDescendants();
+			for (ProcessHandle ph : descendants)
+			{
+				if (ph.isAlive())
+				{
+					tree.add(ph);
+				}
+			}
+		}
+		if (killProcess && process.isAlive())
+		{
+			tree.add(process.toHandle());
+		}
+		if (tree.isEmpty())
+		{
+			return;
+		}
+		for (ProcessHandle ph : tree)
+		{
+			ph.destroy();
+		}
+		scheduler.schedule(new Runnable() {
+			public void run()
+			{
+				for (ProcessHandle ph : tree)
+				{
+					if (ph.isAlive())
+					{
+						ph.destroyForcibly();
+					}
+				}
+			}
+		}, DESTROY_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Record the process's CPU time, peak memory and descendants, if it
+	 * is alive.
+	 */
+	private synchronized void sampleUsage()
+	{
+		if (!process.isAlive())
+		{
+			return;
+		}
+		addDescendants();
+		Optional<Duration> cpu = process.toHandle().info().totalCpuDuration();
+		if (cpu.isPresent())
+		{
+			long nanos = cpu.get().toNanos();
+			if (cpuStartNanos == RunStats.UNKNOWN)
+			{
+				cpuStartNanos = nanos;
+			}
+			cpuNanos = Math.max(cpuNanos, nanos);
+			cpuSamples++;
+		}
+		peakMemoryKb = Math.max(peakMemoryKb, readPeakMemoryKb(process.pid()));
+	}
+
+	/**
+	 * Add the process's current descendants to those seen, and forget
+	 * those that have exited.  Called with the watchdog locked.
+	 */
+	private void addDescendants()
+	{
+		Iterator<ProcessHandle> seen = descendants.iterator();
+		while (seen.hasNext())
+		{
+			if (!seen.next().isAlive())
+			{
+				seen.remove();
+			}
+		}
+		Iterator<ProcessHandle> current = process.descendants().iterator();
+		while (current.hasNext())
+		{
+			descendants.add(current.next());
+		}
+	}
+
+	/**
+	 * Read a process's peak resident memory from /proc.
+	 * @param pid - process id
+	 * @return kilobytes, or RunStats.UNKNOWN if not available
+	 */
+	private static long readPeakMemoryKb(long pid)
+	{
+		File status = new File("/proc/" + pid + "/status");
+		if (!status.isFile())
+		{
+			return RunStats.UNKNOWN;
+		}
+		try
+		{
+			BufferedReader in = new BufferedReader(new FileReader(status));
+			try
+			{
+				String line;
+				while ((line = in.readLine()) != null)
+				{
+					if (line.startsWith("VmHWM:"))
+					{
+						/* "VmHWM:     1234 kB" */
+						String[] fields = line.substring(6).trim().split("\\s+");
+						return Long.parseLong(fields[0]);
+					}
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+		}
+		catch (NumberFormatException e)
+		{
+		}
+		return RunStats.UNKNOWN;
+	}
+}
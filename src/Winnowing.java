@@ -0,0 +1,238 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Document fingerprinting by winnowing (Schleimer, Wilkerson and Aiken),
+ * the technique used by MOSS.  A document is turned into a sequence of
+ * token hashes, every run of K consecutive tokens is hashed, and from
+ * each window of W consecutive k-gram hashes the smallest is kept.  Any
+ * passage of at least K + W - 1 tokens shared by two documents gives
+ * them at least one fingerprint in common.
+ *
+ * Java sources are tokenized so that comments, layout, identifier names
+ * and literal values do not matter: renaming variables or reformatting
+ * copied code does not change its fingerprints.
+ */
+public class Winnowing {
+	/* Tokens per k-gram for Java sources. */
+	public final static int JAVA_K = 12;
+	/* K-grams per winnowing window for Java sources. */
+	public final static int JAVA_W = 8;
+	/* Characters per k-gram for normalized text documents. */
+	public final static int TEXT_K = 20;
+	/* K-grams per winnowing window for normalized text documents. */
+	public final static int TEXT_W = 16;
+	private final static long KGRAM_BASE = 0x100000001b3L;
+
+	private final static String[] JAVA_KEYWORDS = {
+		"abstract", "assert", "boolean", "break", "byte", "case", "catch",
+		"char", "class", "const", "continue", "default", "do", "double",
+		"else", "enum", "extends", "false", "final", "finally", "float",
+		"for", "goto", "if", "implements", "import", "instanceof", "int",
+		"interface", "long", "native", "new", "null", "package", "private",
+		"protected", "public", "return", "short", "static", "strictfp",
+		"super", "switch", "synchronized", "this", "throw", "throws",
+		"transient", "true", "try", "var", "void", "volatile", "while"
+	};
+	private final static long IDENTIFIER_TOKEN = tokenHash("<identifier>");
+	private final static long NUMBER_TOKEN = tokenHash("<number>");
+	private final static long STRING_TOKEN = tokenHash("<string>");
+	private final static long CHAR_TOKEN = tokenHash("<char>");
+
+	/**
+	 * Fingerprint a Java source file.
+	 * @param source - contents of the Java file
+	 * @return sorted, distinct fingerprints
+	 */
+	public static long[] fingerprintJava(String source)
+	{
+		return winnow(tokenizeJava(source), JAVA_K, JAVA_W);
+	}
+
+	/**
+	 * Fingerprint a normalized text document, using its characters as tokens.
+	 * @param document - normalized document
+	 * @return sorted, distinct fingerprints
+	 */
+	public static long[] fingerprintText(NormalizedDocument document)
+	{
+		char[] chars = document.getChars();
+		long[] tokens = new long[chars.length];
+		for (int i = 0; i < chars.length; i++)
+		{
+			tokens[i] = chars[i];
+		}
+		return winnow(tokens, TEXT_K, TEXT_W);
+	}
+
+	/**
+	 * Turn Java source into a sequence of token hashes.  Whitespace and
+	 * comments are dropped; identifiers, numbers, and string and character
+	 * literals each become a single generic token; keywords and operator
+	 * characters keep their own tokens.
+	 * @param source - contents of the Java file
+	 * @return token hashes
+	 */
+	static long[] tokenizeJava(String source)
+	{
+		long[] tokens = new long[Math.max(16, source.length() / 4)];
+		int count = 0;
+		int i = 0;
+		int n = source.length();
+		while (i < n)
+		{
+			char c = source.charAt(i);
+			long token;
+			if (Character.isWhitespace(c))
+			{
+				i++;
+				continue;
+			}
+			if (c == '/' && i + 1 < n && source.charAt(i + 1) == '/')
+			{
+				while (i < n && source.charAt(i) != '\n')
+				{
+					i++;
+				}
+				continue;
+			}
+			if (c == '/' && i + 1 < n && source.charAt(i + 1) == '*')
+			{
+				int end = source.indexOf("*/", i + 2);
+				i = end < 0 ? n : end + 2;
+				continue;
+			}
+			if (source.startsWith("\"\"\"", i))
+			{
+				int end = source.indexOf("\"\"\"", i + 3);
+				i = end < 0 ? n : end + 3;
+				token = STRING_TOKEN;
+			}
+			else if (c == '"' || c == '\'')
+			{
+				i++;
+				while (i < n && source.charAt(i) != c && source.charAt(i) != '\n')
+				{
+					if (source.charAt(i) == '\\')
+					{
+						i++;
+					}
+					i++;
+				}
+				i++;
+				token = c == '"' ? STRING_TOKEN : CHAR_TOKEN;
+			}
+			else if (Character.isDigit(c))
+			{
+				while (i < n && (Character.isLetterOrDigit(source.charAt(i)) ||
+						source.charAt(i) == '.' || source.charAt(i) == '_'))
+				{
+					i++;
+				}
+				token = NUMBER_TOKEN;
+			}
+			else if (Character.isJavaIdentifierStart(c))
+			{
+				int start = i;
+				while (i < n && Character.isJavaIdentifierPart(source.charAt(i)))
+				{
+					i++;
+				}
+				String word = source.substring(start, i);
+				token = Arrays.binarySearch(JAVA_KEYWORDS, word) >= 0 ? tokenHash(word) : IDENTIFIER_TOKEN;
+			}
+			else
+			{
+				i++;
+				token = tokenHash(String.valueOf(c));
+			}
+			if (count == tokens.length)
+			{
+				tokens = Arrays.copyOf(tokens, count * 2);
+			}
+			tokens[count++] = token;
+		}
+		return Arrays.copyOf(tokens, count);
+	}
+
+	/**
+	 * Select fingerprints from a sequence of token hashes by winnowing.
+	 * A sequence shorter than one k-gram gives a single fingerprint, and
+	 * an empty sequence gives none.
+	 * @param tokens - token hashes
+	 * @param k - tokens per k-gram
+	 * @param w - k-grams per window
+	 * @return sorted, distinct fingerprints
+	 */
+	public static long[] winnow(long[] tokens, int k, int w)
+	{
+		if (tokens.length == 0)
+		{
+			return new long[0];
+		}
+		int kgramCount = Math.max(1, tokens.length - k + 1);
+		int kgramLength = Math.min(k, tokens.length);
+		long[] kgrams = new long[kgramCount];
+		long highPower = 1;
+		for (int i = 1; i < kgramLength; i++)
+		{
+			highPower *= KGRAM_BASE;
+		}
+		long h = 0;
+		for (int i = 0; i < kgramLength; i++)
+		{
+			h = h * KGRAM_BASE + tokens[i];
+		}
+		kgrams[0] = MinHashIndex.mix(h);
+		for (int i = 1; i < kgramCount; i++)
+		{
+			h = (h - tokens[i - 1] * highPower) * KGRAM_BASE + tokens[i + kgramLength - 1];
+			kgrams[i] = MinHashIndex.mix(h);
+		}
+
+		ArrayList<Long> selected = new ArrayList<Long>();
+		int windowCount = Math.max(1, kgramCount - w + 1);
+		int windowLength = Math.min(w, kgramCount);
+		int lastSelected = -1;
+		for (int start = 0; start < windowCount; start++)
+		{
+			/* Rightmost minimum, so that a minimum is kept while it stays in the window. */
+			int minimum = start;
+			for (int i = start + 1; i < start + windowLength; i++)
+			{
+				if (kgrams[i] <= kgrams[minimum])
+				{
+					minimum = i;
+				}
+			}
+			if (minimum != lastSelected)
+			{
+				selected.add(kgrams[minimum]);
+				lastSelected = minimum;
+			}
+		}
+		long[] fingerprints = new long[selected.size()];
+		for (int i = 0; i < fingerprints.length; i++)
+		{
+			fingerprints[i] = selected.get(i);
+		}
+		Arrays.sort(fingerprints);
+		int distinct = 0;
+		for (int i = 0; i < fingerprints.length; i++)
+		{
+			if (i == 0 || fingerprints[i] != fingerprints[distinct - 1])
+			{
+				fingerprints[distinct++] = fingerprints[i];
+			}
+		}
+		return Arrays.copyOf(fingerprints, distinct);
+	}
+
+	/**
+	 * Hash a token's text.
+	 */
+	private static long tokenHash(String token)
+	{
+		return MinHashIndex.mix(token.hashCode() + 0x9E3779B97F4A7C15L);
+	}
+}
@@ -0,0 +1,248 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.ArrayList;
+
+/**
+ * A long-lived worker JVM that runs a student's programs without
+ * starting a new JVM for each run (see WorkerJvmMain).  A JVM cannot
+ * change its working directory, and students' programs read and write
+ * files relative to it, so a worker is started in one student's
+ * directory and runs all of that student's run configurations.
+ *
+ * Requests (to the worker's standard input, big-endian):
+ *   byte RUN, UTF program, boolean hasClasspath, [UTF classpath],
+ *   int argCount, argCount x UTF argument,
+ *   int propertyCount, propertyCount x UTF "name=value",
+ *   boolean hasInputFile, [UTF input file path].
+ * Responses (from the worker's standard output):
+ *   byte STDOUT or STDERR, int length, length bytes of output; or
+ *   byte DONE, int exitCode, boolean poisoned.
+ *
+ * When the worker exits during a run, because the program called
+ * System.exit or the run took too long and the worker was destroyed,
+ * the worker's exit code is the run's exit code, and a new worker is
+ * started for the next run.
+ */
+public class WorkerJvm {
+	public final static byte RUN = 1;
+	public final static byte STDOUT = 1;
+	public final static byte STDERR = 2;
+	public final static byte DONE = 3;
+
+	private File dir;
+	private Process process;
+	private DataOutputStream requests;
+	private DataInputStream responses;
+	private Watchdog watchdog;
+
+	/**
+	 * Create a worker for a student's directory.  The worker JVM is
+	 * started by the first run.
+	 * @param _dir - working directory of the programs
+	 */
+	public WorkerJvm(File _dir)
+	{
+		dir = _dir;
+	}
+
+	/**
+	 * Run a program in the worker, starting a new worker JVM if needed.
+	 * @param program - name of the class with the main method
+	 * @param classpath - classpath setting (entries relative to the directory), or null
+	 * @param args - arguments of the program
+	 * @param properties - "name=value" system properties to set, or null
+	 * @param inputFile - file to use as standard input, or null
+	 * @param stdout - stream receiving the program's standard output
+	 * @param stderr - stream receiving the program's error output
+	 * @param timeoutMillis - time after which the run is stopped
+	 * @return exit code of the run
+	 * @throws IOException
+	 */
+	public int run(String program, String classpath, String[] args, String[] properties, File inputFile,
+			OutputStream stdout, OutputStream stderr, long timeoutMillis) throws IOException, InterruptedException
+	{
+		if (inputFile != null)
+		{
+			/* Report an input file that cannot be opened as a new JVM's run would. */
+			new FileInputStream(inputFile).close();
+		}
+		if (process == null)
+		{
+			start();
+		}
+		try
+		{
+			sendRequest(program, classpath, args, properties, inputFile);
+		}
+		catch (IOException e)
+		{
+			/* The worker exited since the last run; start another. */
+			close();
+			start();
+			sendRequest(program, classpath, args, properties, inputFile);
+		}
+
+		Process runProcess = process;
+		watchdog = Watchdog.watch(runProcess, timeoutMillis);
+		try
+		{
+			byte[] buf = new byte[CopyFile.BUFFER_SIZE];
+			while (true)
+			{
+				byte type = responses.readByte();
+				if (type == DONE)
+				{
+					int exitCode = responses.readInt();
+					if (responses.readBoolean())
+					{
+						close();
+					}
+					return exitCode;
+				}
+				int length = responses.readInt();
+				OutputStream to = type == STDOUT ? stdout : stderr;
+				while (length > 0)
+				{
+					int n = responses.read(buf, 0, Math.min(length, buf.length));
+					if (n < 0)
+					{
+						throw new EOFException();
+					}
+					to.write(buf, 0, n);
+					length -= n;
+				}
+			}
+		}
+		catch (EOFException e)
+		{
+			/* The worker exited during the run. */
+			int exitCode = runProcess.waitFor();
+			close();
+			return exitCode;
+		}
+		finally
+		{
+			watchdog.cancel();
+		}
+	}
+
+	/**
+	 * Send a run request to the worker.
+	 */
+	private void sendRequest(String program, String classpath, String[] args, String[] properties, File inputFile) throws IOException
+	{
+		requests.writeByte(RUN);
+		requests.writeUTF(program);
+		requests.writeBoolean(classpath != null);
+		if (classpath != null)
+		{
+			requests.writeUTF(classpath);
+		}
+		requests.writeInt(args.length);
+		for (String a : args)
+		{
+			requests.writeUTF(a);
+		}
+		requests.writeInt(properties == null ? 0 : properties.length);
+		if (properties != null)
+		{
+			for (String p : properties)
+			{
+				requests.writeUTF(p);
+			}
+		}
+		requests.writeBoolean(inputFile != null);
+		if (inputFile != null)
+		{
+			requests.writeUTF(inputFile.getAbsolutePath());
+		}
+		requests.flush();
+	}
+
+	/**
+	 * Determine whether the last run was stopped for taking too long.
+	 * @return true if the last run timed out
+	 */
+	public boolean isTimedOut()
+	{
+		return watchdog != null && watchdog.isTimedOut();
+	}
+
+	/**
+	 * Get the watchdog of the last run, which holds its resource usage.
+	 * @return watchdog, or null before the first run
+	 */
+	public Watchdog getWatchdog()
+	{
+		return watchdog;
+	}
+
+	/**
+	 * Stop the current run, and with it the worker JVM.  May be called
+	 * from the output streams passed to run().
+	 */
+	public void stopRun()
+	{
+		if (watchdog != null)
+		{
+			watchdog.stop();
+		}
+	}
+
+	/**
+	 * Stop the worker JVM, if it is running.
+	 */
+	public void close()
+	{
+		if (process != null)
+		{
+			try
+			{
+				requests.close();
+				responses.close();
+			}
+			catch (IOException e)
+			{
+			}
+			process.destroy();
+			process = null;
+		}
+	}
+
+	/**
+	 * Start a worker JVM in the directory, with the grading program's
+	 * classpath so it can load WorkerJvmMain.
+	 */
+	private void start() throws IOException
+	{
+		ArrayList<String> cmd = new ArrayList<String>();
+		cmd.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+		/* The worker runs in another directory, so make the classpath absolute. */
+		StringBuilder classpath = new StringBuilder();
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator))
+		{
+			if (classpath.length() > 0)
+			{
+				classpath.append(File.pathSeparator);
+			}
+			classpath.append(new File(entry).getAbsolutePath());
+		}
+		cmd.add("-classpath");
+		cmd.add(classpath.toString());
+		cmd.add("WorkerJvmMain");
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.directory(dir);
+		pb.redirectError(Redirect.INHERIT);
+		process = pb.start();
+		requests = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+		responses = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+	}
+}
@@ -0,0 +1,273 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Main program of a worker JVM started by WorkerJvm.  The worker reads
+ * run requests from its standard input, and for each one loads the
+ * student's classes in a new URLClassLoader, sets System.in, System.out,
+ * System.err and the requested system properties, and calls the main
+ * method of the program's class in a thread of its own.  As when a
+ * program runs in its own JVM, the run ends when every non-daemon thread
+ * started by the program has finished.  Output and the run's exit code
+ * are written to the worker's standard output as frames (see WorkerJvm).
+ *
+ * A program that calls System.exit ends the worker with its exit code,
+ * after the output written so far is sent.  A program that leaves
+ * threads running is reported as having poisoned the worker, which then
+ * exits so that no state is carried into the next run.
+ */
+public class WorkerJvmMain {
+	private static DataOutputStream responses;
+
+	/**
+	 * Output stream that sends each write as a frame of the given type.
+	 */
+	private static class FrameOutputStream extends OutputStream {
+		private byte type;
+
+		FrameOutputStream(byte _type)
+		{
+			type = _type;
+		}
+
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			synchronized (responses)
+			{
+				responses.writeByte(type);
+				responses.writeInt(len);
+				responses.write(b, off, len);
+			}
+		}
+
+		public void flush() throws IOException
+		{
+			synchronized (responses)
+			{
+				responses.flush();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		responses = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+		DataInputStream requests = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+		/* Send the output of a program that calls System.exit. */
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run()
+			{
+				try
+				{
+					synchronized (responses)
+					{
+						responses.flush();
+					}
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		});
+		Properties savedProperties = (Properties) System.getProperties().clone();
+		PrintStream stdout = new PrintStream(new FrameOutputStream(WorkerJvm.STDOUT), true);
+		PrintStream stderr = new PrintStream(new FrameOutputStream(WorkerJvm.STDERR), true);
+		File workingDirectory = new File(System.getProperty("user.dir"));
+		while (true)
+		{
+			try
+			{
+				if (requests.readByte() != WorkerJvm.RUN)
+				{
+					throw new IOException("Unexpected request");
+				}
+			}
+			catch (EOFException e)
+			{
+				return;
+			}
+			String program = requests.readUTF();
+			String classpath = requests.readBoolean() ? requests.readUTF() : null;
+			String[] programArgs = new String[requests.readInt()];
+			for (int i = 0; i < programArgs.length; i++)
+			{
+				programArgs[i] = requests.readUTF();
+			}
+			String[] properties = new String[requests.readInt()];
+			for (int i = 0; i < properties.length; i++)
+			{
+				properties[i] = requests.readUTF();
+			}
+			String inputFile = requests.readBoolean() ? requests.readUTF() : null;
+
+			InputStream stdin = inputFile != null ?
+					new BufferedInputStream(new FileInputStream(inputFile)) : new ByteArrayInputStream(new byte[0]);
+			System.setIn(stdin);
+			System.setOut(stdout);
+			System.setErr(stderr);
+			for (String p : properties)
+			{
+				int eq = p.indexOf('=');
+				System.setProperty(eq < 0 ? p : p.substring(0, eq), eq < 0 ? "" : p.substring(eq + 1));
+			}
+			ThreadGroup group = new ThreadGroup("run");
+			int exitCode = runProgram(group, workingDirectory, program, classpath, programArgs);
+			stdout.flush();
+			stderr.flush();
+			stdin.close();
+			System.setProperties((Properties) savedProperties.clone());
+			boolean poisoned = group.activeCount() > 0;
+			synchronized (responses)
+			{
+				responses.writeByte(WorkerJvm.DONE);
+				responses.writeInt(exitCode);
+				responses.writeBoolean(poisoned);
+				responses.flush();
+			}
+			if (poisoned)
+			{
+				Runtime.getRuntime().halt(0);
+			}
+		}
+	}
+
+	/**
+	 * Run a program's main method in a thread of the given group, and
+	 * wait for the non-daemon threads of the group to finish.
+	 * @return exit code, as the java command would return it
+	 */
+	private static int runProgram(ThreadGroup group, File dir, final String program, String classpath, String[] args) throws IOException
+	{
+		List<File> entries = InProcessCompiler.resolveClasspath(dir, classpath);
+		URL[] urls = new URL[entries.size()];
+		for (int i = 0; i < urls.length; i++)
+		{
+			urls[i] = entries.get(i).toURI().toURL();
+		}
+		final URLClassLoader loader = new URLClassLoader(urls, ClassLoader.getPlatformClassLoader());
+		final Method main;
+		try
+		{
+			main = loader.loadClass(program).getMethod("main", String[].class);
+		}
+		catch (ClassNotFoundException e)
+		{
+			System.err.println("Error: Could not find or load main class " + program);
+			System.err.println("Caused by: " + e);
+			loader.close();
+			return 1;
+		}
+		catch (NoSuchMethodException e)
+		{
+			System.err.println("Error: Main method not found in class " + program);
+			loader.close();
+			return 1;
+		}
+		final Object[] mainArgs = new Object[] { args };
+		final int[] exitCode = new int[1];
+		Thread mainThread = new Thread(group, new Runnable() {
+			public void run()
+			{
+				try
+				{
+					main.invoke(null, mainArgs);
+				}
+				catch (InvocationTargetException e)
+				{
+					Throwable cause = e.getCause();
+					trimStackTrace(cause);
+					System.err.print("Exception in thread \"main\" ");
+					cause.printStackTrace();
+					exitCode[0] = 1;
+				}
+				catch (IllegalAccessException e)
+				{
+					System.err.println("Error: Main method in class " + program + " is not accessible");
+					exitCode[0] = 1;
+				}
+			}
+		}, "main");
+		mainThread.setContextClassLoader(loader);
+		mainThread.start();
+		joinNonDaemonThreads(group);
+		loader.close();
+		return exitCode[0];
+	}
+
+	/**
+	 * Wait until the group has no live non-daemon threads.
+	 */
+	private static void joinNonDaemonThreads(ThreadGroup group)
+	{
+		while (true)
+		{
+			Thread[] threads = new Thread[group.activeCount() + 8];
+			int count = group.enumerate(threads, true);
+			boolean waited = false;
+			for (int i = 0; i < count; i++)
+			{
+				if (!threads[i].isDaemon() && threads[i].isAlive())
+				{
+					try
+					{
+						threads[i].join();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					waited = true;
+				}
+			}
+			if (!waited)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Remove the worker's reflection frames from the bottom of an
+	 * exception's stack trace, so it reads as if main had been called
+	 * by the java command.
+	 */
+	private static void trimStackTrace(Throwable t)
+	{
+		StackTraceElement[] trace = t.getStackTrace();
+		int length = trace.length;
+		for (int i = 0; i < trace.length; i++)
+		{
+			String className = trace[i].getClassName();
+			if (className.startsWith("jdk.internal.reflect.") || className.equals("java.lang.reflect.Method"))
+			{
+				length = i;
+				break;
+			}
+		}
+		t.setStackTrace(Arrays.copyOf(trace, length));
+	}
+}